@@ -0,0 +1,165 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import net.gensokyoreimagined.motoori.KosuzuTranslationModels.TranslatedText;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeepL request and response bodies, written and read by the streaming codec and by plain Gson, as they were before it.
+ * Run with the GC profiler (configured in build.gradle) and compare gc.alloc.rate.norm, the bytes allocated per call.
+ * The legacy benchmarks include the String copies BodyPublishers.ofString and BodyHandlers.ofString used to make.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KosuzuEncodesEverythingBenchmark {
+    /**
+     * 1: a single click to translate; 13: a typical batch; 50: a full batch
+     */
+    @Param({"1", "13", "50"})
+    public int batchSize;
+
+    private final Gson gson = new Gson();
+
+    private List<String> inputs;
+    private byte[] mobileResponse;
+    private byte[] apiResponse;
+
+    @Setup
+    public void setup() {
+        inputs = new ArrayList<>();
+        var mobileTexts = new StringBuilder();
+        var apiTranslations = new StringBuilder();
+
+        for (int i = 0; i < batchSize; i++) {
+            inputs.add("does anyone have spare iron? i need " + i + " for a pickaxe before it gets dark");
+            var translated = gson.toJson("hat jemand noch Eisen übrig? ich brauche " + i + " für eine Spitzhacke, bevor es dunkel wird");
+
+            if (i > 0) {
+                mobileTexts.append(',');
+                apiTranslations.append(',');
+            }
+
+            mobileTexts.append("{\"alternatives\":[],\"text\":").append(translated).append('}');
+            apiTranslations.append("{\"detected_source_language\":\"EN\",\"text\":").append(translated).append('}');
+        }
+
+        // Shaped like the real responses, including the fields the codec skips
+        mobileResponse = ("{\"jsonrpc\":\"2.0\",\"id\":8351234000,\"result\":{\"texts\":[" + mobileTexts
+                + "],\"lang\":\"EN\",\"lang_is_confident\":false,\"detectedLanguages\":{\"EN\":0.92,\"DE\":0.03,\"unsupported\":0.05}}}")
+                .getBytes(StandardCharsets.UTF_8);
+        apiResponse = ("{\"translations\":[" + apiTranslations + "]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public HttpRequest.BodyPublisher writeMobileRequest() {
+        return KosuzuEncodesEverything.writeMobileRequest(inputs, "de").publisher();
+    }
+
+    @Benchmark
+    public HttpRequest.BodyPublisher writeMobileRequestLegacy() {
+        var texts = new ArrayList<Map<String, Object>>();
+        for (var input : inputs) {
+            var text = new LinkedHashMap<String, Object>();
+            text.put("text", input);
+            text.put("requestAlternatives", 0);
+            texts.add(text);
+        }
+
+        var lang = new LinkedHashMap<String, Object>();
+        lang.put("source_lang_user_selected", "AUTO");
+        lang.put("target_lang", "de");
+
+        var params = new LinkedHashMap<String, Object>();
+        params.put("texts", texts);
+        params.put("splitting", "newlines");
+        params.put("lang", lang);
+        params.put("timestamp", System.currentTimeMillis());
+
+        var job = new LinkedHashMap<String, Object>();
+        job.put("jsonrpc", "2.0");
+        job.put("method", "LMT_handle_texts");
+        job.put("params", params);
+        job.put("id", 8351234000L);
+
+        var jsonRequest = gson.toJson(job);
+        return HttpRequest.BodyPublishers.ofByteArray(jsonRequest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public HttpRequest.BodyPublisher writeApiRequest() {
+        return KosuzuEncodesEverything.writeApiRequest(inputs, "DE").publisher();
+    }
+
+    @Benchmark
+    public HttpRequest.BodyPublisher writeApiRequestLegacy() {
+        var request = new LinkedHashMap<String, Object>();
+        request.put("text", inputs);
+        request.put("target_lang", "DE");
+
+        var jsonRequest = gson.toJson(request);
+        return HttpRequest.BodyPublishers.ofByteArray(jsonRequest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public List<TranslatedText> readMobileResponse() throws IOException {
+        return KosuzuEncodesEverything.readMobileResponse(new ByteArrayInputStream(mobileResponse));
+    }
+
+    @Benchmark
+    public List<TranslatedText> readMobileResponseLegacy() {
+        var body = new String(mobileResponse, StandardCharsets.UTF_8);
+        var result = gson.fromJson(body, JsonObject.class).getAsJsonObject("result");
+        var sourceLanguage = result.get("lang").getAsString();
+
+        var translations = new ArrayList<TranslatedText>();
+        for (var text : result.getAsJsonArray("texts")) {
+            translations.add(new TranslatedText(text.getAsJsonObject().get("text").getAsString(), sourceLanguage));
+        }
+
+        return translations;
+    }
+
+    @Benchmark
+    public List<TranslatedText> readApiResponse() throws IOException {
+        return KosuzuEncodesEverything.readApiResponse(new ByteArrayInputStream(apiResponse));
+    }
+
+    @Benchmark
+    public List<TranslatedText> readApiResponseLegacy() {
+        var body = new String(apiResponse, StandardCharsets.UTF_8);
+        var translations = new ArrayList<TranslatedText>();
+        for (var translation : gson.fromJson(body, JsonObject.class).getAsJsonArray("translations")) {
+            var object = translation.getAsJsonObject();
+            translations.add(new TranslatedText(object.get("text").getAsString(), object.get("detected_source_language").getAsString()));
+        }
+
+        return translations;
+    }
+}
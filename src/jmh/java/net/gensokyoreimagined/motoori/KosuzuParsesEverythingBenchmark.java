@@ -0,0 +1,174 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextReplacementConfig;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.format.TextDecoration;
+import net.kyori.adventure.text.serializer.json.JSONComponentSerializer;
+import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * The work done by the chat decorate handlers for every chat message, without the database.
+ * Run with the GC profiler (configured in build.gradle) to see allocations per message alongside the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KosuzuParsesEverythingBenchmark {
+    /**
+     * plain: a short typed message; link: a message with a URL; styled: a message built up by other chat plugins
+     */
+    @Param({"plain", "link", "styled"})
+    public String shape;
+
+    @Param({"0", "10", "100"})
+    public int blacklistSize;
+
+    private static final String NAME = "Notch";
+    private static final UUID LOOKUP = UUID.fromString("5f3c8a53-2a8e-4d8b-9a55-0c1f27a1b6e4");
+
+    private static final Pattern LEGACY_URL_PATTERN = Pattern.compile("\\bhttps?://[0-9a-zA-Z](?:[-.\\w]*[0-9a-zA-Z])*(?::(0-9)*)*(/?)(?:[a-zA-Z0-9\\-.?,'/\\\\+&amp;%$#_]*)?\\b");
+
+    private KosuzuParsesEverything parser;
+
+    /**
+     * What the player typed, as AsyncChatDecorateEvent.originalMessage()
+     */
+    private Component message;
+
+    /**
+     * The message after other decorators, as AsyncChatDecorateEvent.result()
+     */
+    private Component decorated;
+
+    /**
+     * The full chat line, as matched by match.include
+     */
+    private Component line;
+
+    @Setup
+    public void setup() {
+        var logger = Logger.getAnonymousLogger();
+        logger.setLevel(Level.WARNING);
+
+        var blacklist = new ArrayList<String>();
+        for (int i = 0; i < blacklistSize; i++) {
+            // Rank prefixes and emoji shortcodes, the usual things servers blacklist
+            blacklist.add(i % 2 == 0 ? "[Rank" + i + "]" : ":emoji_" + i + ":");
+        }
+
+        parser = new KosuzuParsesEverything(logger, List.of(
+                "^<[^>]+> (.*)",
+                "^[^\\[][^»]+» (.*)",
+                "^(?::build:|:dev_server:).+?: (.*)",
+                "^\\[[^]]+] %username%: (.*)"
+        ), blacklist);
+
+        message = switch (shape) {
+            case "plain" -> Component.text("does anyone have spare iron? i need to make a pickaxe before it gets dark");
+            case "link" -> Component.text("the farm design is on https://minecraft.wiki/w/Tutorials/Iron_farm?ref=chat check it out");
+            case "styled" -> Component.text()
+                    .append(Component.text("[Rank2] ", NamedTextColor.GOLD))
+                    .append(Component.text("selling ", NamedTextColor.WHITE))
+                    .append(Component.text("64 diamonds", NamedTextColor.AQUA, TextDecoration.BOLD))
+                    .append(Component.text(" :emoji_3: dm me, prices at https://example.com/shop", NamedTextColor.WHITE))
+                    .build();
+            default -> throw new IllegalArgumentException(shape);
+        };
+
+        decorated = Component.text()
+                .append(Component.text("[", NamedTextColor.DARK_GRAY))
+                .append(Component.text("Member", NamedTextColor.GREEN))
+                .append(Component.text("] ", NamedTextColor.DARK_GRAY))
+                .append(message)
+                .build();
+
+        line = Component.text()
+                .append(Component.text("<" + NAME + "> "))
+                .append(message)
+                .build();
+    }
+
+    @Benchmark
+    public Component removeUnwantedSyntax() {
+        return parser.removeUnwantedSyntax(message);
+    }
+
+    @Benchmark
+    public Component makeLinksClickable() {
+        return parser.makeLinksClickable(decorated);
+    }
+
+    /**
+     * makeLinksClickable as it was before the prebuilt config, pre-scan and linear-time pattern, for comparison
+     */
+    @Benchmark
+    public Component makeLinksClickableLegacy() {
+        final var urlReplacement = TextReplacementConfig.builder().match(LEGACY_URL_PATTERN).replacement((match) -> {
+            var url = match.content();
+            return Component.text(url).clickEvent(ClickEvent.openUrl(url));
+        }).build();
+
+        return decorated.replaceText(urlReplacement);
+    }
+
+    @Benchmark
+    public String getTextMessage() {
+        return parser.getTextMessage(line, NAME);
+    }
+
+    @Benchmark
+    public String serializeJson() {
+        return JSONComponentSerializer.json().serialize(decorated);
+    }
+
+    @Benchmark
+    public String serializePlainText() {
+        return PlainTextComponentSerializer.plainText().serialize(message);
+    }
+
+    /**
+     * onChatDecorateEarliest followed by onChatDecorateLatest, minus the database
+     */
+    @Benchmark
+    public Component decorate(Blackhole blackhole) {
+        var earliest = parser.removeUnwantedSyntax(message);
+
+        var filtered = parser.removeUnwantedSyntax(message);
+        // Stored alongside the plain text by addMessage
+        blackhole.consume(JSONComponentSerializer.json().serialize(earliest));
+        blackhole.consume(PlainTextComponentSerializer.plainText().serialize(filtered));
+
+        var response = earliest
+                .hoverEvent(Component.text("Click to translate").color(NamedTextColor.GRAY))
+                .clickEvent(ClickEvent.runCommand("/kosuzu translate " + LOOKUP));
+
+        return parser.makeLinksClickable(response);
+    }
+}
@@ -0,0 +1,286 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.serializer.json.JSONComponentSerializer;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * SQLite under a simulated chat load of 50 messages per second, while players click messages to translate them.
+ * baseline is the setup before WAL and batching: a pool of rollback-journal connections, and every message written
+ * by its own async task, one statement at a time (the old addMessageSQL, reproduced below against the current schema).
+ * current is the plugin itself: KosuzuRemembersEverything as configured by default, messages going through addMessage
+ * and the message writer, and lookups through getTranslation.
+ * Compare read's latency percentiles; chat only keeps the pace. How many messages were offered and how many actually
+ * got written is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KosuzuRemembersEverythingBenchmark {
+    @Param({"baseline", "current"})
+    public String profile;
+
+    private static final long MESSAGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 50;
+    private static final int SEEDED_LOOKUPS = 10000;
+    private static final int SEED_BATCH_SIZE = 200;
+    private static final UUID READER = UUID.randomUUID();
+
+    private Path directory;
+
+    // current
+    private KosuzuRemembersEverything database;
+
+    // baseline
+    private BasicDataSource dataSource;
+    private ExecutorService async;
+    private final AtomicLong failed = new AtomicLong();
+
+    private final List<UUID> lookups = new ArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong offered = new AtomicLong();
+
+    /**
+     * When the chat thread sends its next message; only touched by that thread
+     */
+    private long nextMessage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        directory = Files.createTempDirectory("kosuzu-benchmark");
+
+        if (profile.equals("current")) {
+            var config = new YamlConfiguration();
+            config.set("storage.type", "sqlite");
+            config.set("storage.sqlite.file", "kosuzu.db");
+
+            var loader = KosuzuRemembersEverythingBenchmark.class.getClassLoader();
+            database = new KosuzuRemembersEverything(config, Logger.getLogger("Kosuzu"), directory, loader::getResourceAsStream, () -> {});
+
+            // Something for the readers to find, written the way the message writer writes it
+            var batch = new ArrayList<KosuzuDatabaseModels.PendingMessage>();
+            for (int i = 0; i < SEEDED_LOOKUPS; i++) {
+                var text = nextText();
+                var component = Component.text(text);
+                var message = new KosuzuDatabaseModels.PendingMessage(UUID.randomUUID(), KosuzuHashesEverything.fingerprint(component), JSONComponentSerializer.json().serialize(component), text);
+
+                batch.add(message);
+                lookups.add(message.lookup());
+
+                if (batch.size() == SEED_BATCH_SIZE) {
+                    database.addMessagesSQL(batch);
+                    batch.clear();
+                }
+            }
+
+            database.addMessagesSQL(batch);
+        } else {
+            // As initializeSqlite used to set it up
+            dataSource = new BasicDataSource();
+            dataSource.setUrl("jdbc:sqlite:" + directory.resolve("kosuzu.db"));
+            dataSource.setMinIdle(5);
+            dataSource.setMaxIdle(10);
+            dataSource.setMaxOpenPreparedStatements(50);
+
+            // Bukkit's async scheduler, which the writes used to run on, is an unbounded thread pool
+            async = Executors.newCachedThreadPool();
+
+            try (var connection = dataSource.getConnection(); var statement = connection.createStatement()) {
+                for (int i = 0; ; i++) {
+                    var migration = KosuzuRemembersEverythingBenchmark.class.getResourceAsStream("/migration" + i + ".sqlite.sql");
+                    if (migration == null) break;
+
+                    try (migration) {
+                        for (var query : new String(migration.readAllBytes(), StandardCharsets.UTF_8).split(";")) {
+                            if (!query.isBlank()) statement.execute(query);
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < SEEDED_LOOKUPS; i++) {
+                var text = nextText();
+                var lookup = UUID.randomUUID();
+
+                addMessageSQL(lookup, JSONComponentSerializer.json().serialize(Component.text(text)), text);
+                lookups.add(lookup);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (database != null) {
+            // Writes whatever is still queued
+            database.close();
+        } else {
+            async.shutdown();
+            async.awaitTermination(1, TimeUnit.MINUTES);
+            dataSource.close();
+        }
+
+        long stored;
+        try (var connection = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("kosuzu.db"));
+             var statement = connection.createStatement();
+             var result = statement.executeQuery("SELECT COUNT(*) FROM `user_message_lookup`")) {
+            result.next();
+            stored = result.getLong(1) - SEEDED_LOOKUPS;
+        }
+
+        System.out.println();
+        System.out.println(profile + ": " + offered.get() + " messages offered, " + stored + " written, " + failed.get() + " failed");
+
+        try (var files = Files.list(directory)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+
+        Files.delete(directory);
+    }
+
+    /**
+     * One chat message every 20 ms, however long the last one took to hand off
+     */
+    @Benchmark
+    @Group("chat")
+    @GroupThreads(1)
+    public void chat() {
+        var now = System.nanoTime();
+        nextMessage = nextMessage == 0 ? now : nextMessage + MESSAGE_INTERVAL_NANOS;
+
+        if (nextMessage > now) {
+            LockSupport.parkNanos(nextMessage - now);
+        }
+
+        var text = nextText();
+        var component = Component.text(text);
+        offered.incrementAndGet();
+
+        if (database != null) {
+            database.addMessage(component, text);
+        } else {
+            // The old messageCache loader: serialize, pick a lookup UUID, and write it on another thread
+            var json = JSONComponentSerializer.json().serialize(component);
+            var lookup = UUID.randomUUID();
+            async.execute(() -> addMessageSQL(lookup, json, text));
+        }
+    }
+
+    @Benchmark
+    @Group("chat")
+    @GroupThreads(4)
+    public Object read() throws SQLException {
+        var lookup = lookups.get(ThreadLocalRandom.current().nextInt(lookups.size()));
+
+        if (database != null) {
+            return database.getTranslation(lookup, READER);
+        }
+
+        // The old getTranslation: everything in one query
+        try (var connection = dataSource.getConnection();
+             var statement = connection.prepareStatement("SELECT user_message.json_msg, message.uuid AS message_id, message.language, message.text, message_translation.text AS translation, `user`.`default_language` FROM `user_message_lookup` INNER JOIN `user_message` ON user_message.uuid = user_message_lookup.user_message_id LEFT JOIN `message` ON message.uuid = user_message.message_id LEFT JOIN `user` ON `user`.`uuid` = ? LEFT JOIN `message_translation` ON message_translation.message_id = message.uuid AND user.default_language = message_translation.language WHERE `user_message_lookup`.`uuid` = ?;")) {
+            statement.setBytes(1, KosuzuRemembersEverything.toBytes(READER));
+            statement.setBytes(2, KosuzuRemembersEverything.toBytes(lookup));
+
+            try (var result = statement.executeQuery()) {
+                return result.next() ? result.getString("json_msg") : null;
+            }
+        }
+    }
+
+    private String nextText() {
+        return "does anyone have spare iron? i need " + sequence.incrementAndGet() + " for a pickaxe";
+    }
+
+    /**
+     * The old addMessageSQL, statement for statement, with UUIDs stored as bytes as the schema now has them
+     */
+    private void addMessageSQL(UUID lookupUUID, String json, String message) {
+        try (var connection = dataSource.getConnection()) {
+            byte[] messageUUID = null;
+
+            try (var statement = connection.prepareStatement("SELECT uuid FROM `message` WHERE `text` = ?")) {
+                statement.setString(1, message);
+                try (var data = statement.executeQuery()) {
+                    if (data.next()) {
+                        messageUUID = data.getBytes("uuid");
+                    }
+                }
+            }
+
+            if (messageUUID == null) {
+                messageUUID = KosuzuRemembersEverything.toBytes(UUID.randomUUID());
+                try (var statement = connection.prepareStatement("INSERT INTO `message` (`uuid`, `text`) VALUES (?, ?)")) {
+                    statement.setBytes(1, messageUUID);
+                    statement.setString(2, message);
+                    statement.execute();
+                }
+            }
+
+            byte[] uuid = null;
+
+            try (var statement = connection.prepareStatement("SELECT `uuid` FROM `user_message` WHERE `json_msg` = ?")) {
+                statement.setString(1, json);
+                try (var data = statement.executeQuery()) {
+                    if (data.next()) {
+                        uuid = data.getBytes("uuid");
+                    }
+                }
+            }
+
+            if (uuid == null) {
+                uuid = KosuzuRemembersEverything.toBytes(UUID.randomUUID());
+
+                try (var statement = connection.prepareStatement("INSERT INTO `user_message` (`uuid`, `message_id`, `json_msg`) VALUES (?, ?, ?)")) {
+                    statement.setBytes(1, uuid);
+                    statement.setBytes(2, messageUUID);
+                    statement.setString(3, json);
+                    statement.execute();
+                }
+            }
+
+            try (var statement = connection.prepareStatement("INSERT INTO `user_message_lookup` (`uuid`, `user_message_id`) VALUES (?, ?)")) {
+                statement.setBytes(1, KosuzuRemembersEverything.toBytes(lookupUUID));
+                statement.setBytes(2, uuid);
+                statement.execute();
+            }
+        } catch (SQLException e) {
+            // Usually SQLITE_BUSY; the old code logged these and lost the message
+            failed.incrementAndGet();
+        }
+    }
+}
@@ -28,6 +28,8 @@ import java.util.Objects;
 public final class Kosuzu extends JavaPlugin {
     public final FileConfiguration config = getConfig();
     public KosuzuRemembersEverything database;
+    public KosuzuCachesEverything cache;
+    public KosuzuTranslatesEverything translator;
 
     public static final Component HEADER = Component
             .text("[", NamedTextColor.GOLD)
@@ -43,22 +45,61 @@ public final class Kosuzu extends JavaPlugin {
         config.addDefault("default-language", "EN-US");
         config.addDefault("ratelimit.token_bucket_capacity", 256); // Max characters in a single message
         config.addDefault("ratelimit.token_refill_rate", 25); // Characters per second
+        config.addDefault("ratelimit.global_bucket_capacity", 5000); // Max characters sent to DeepL at once, across all players
+        config.addDefault("ratelimit.global_refill_rate", 500); // Characters per second, across all players
+        config.addDefault("translation.backends", List.of("deepl-mobile", "deepl-api")); // Tried in order: deepl-mobile, deepl-api or mock
+        config.addDefault("translation.mock.latency_ms", 150); // How long the mock backend takes to answer
+        config.addDefault("translation.mock.error_rate", 0); // Percentage of mock backend calls that fail
+        config.addDefault("translation.mock.max_batch_size", 50); // Max texts per mock backend call
+        config.addDefault("http.connect_timeout_ms", 5000); // How long to wait for a connection to DeepL
+        config.addDefault("http.request_timeout_ms", 10000); // How long to wait for DeepL to answer
+        config.addDefault("http.threads", 4); // Threads handling DeepL responses
+        config.addDefault("retry.max_attempts", 3); // Tries per backend when DeepL is rate-limiting, erroring or not answering
+        config.addDefault("retry.base_delay_ms", 250); // Limit of the random wait before the first retry, doubled for every retry after
+        config.addDefault("retry.max_delay_ms", 4000); // Max limit of the random wait between retries
+        config.addDefault("retry.max_total_ms", 8000); // No retry starts after this long, unless Retry-After fits within it
+        config.addDefault("circuit_breaker.window_seconds", 60); // How far back failures and slow requests are counted
+        config.addDefault("circuit_breaker.min_calls", 10); // Requests needed in the window before a backend can be cut off
+        config.addDefault("circuit_breaker.failure_rate", 50); // Percentage of failed requests that cuts a backend off
+        config.addDefault("circuit_breaker.slow_call_ms", 5000); // Requests taking longer than this count as slow
+        config.addDefault("circuit_breaker.slow_call_rate", 80); // Percentage of slow requests that cuts a backend off
+        config.addDefault("circuit_breaker.open_seconds", 30); // How long a backend is cut off
+        config.addDefault("circuit_breaker.half_open_probes", 3); // Requests that must succeed before a backend is used again
+        config.addDefault("batching.window_ms", 100); // How long to collect translations before sending them together
+        config.addDefault("batching.max_size", 50); // Max texts per DeepL request
+        config.addDefault("cache.max_characters", 2000000); // Total characters of translations kept in memory
+        config.addDefault("cache.warm_count", 5000); // Recent translations loaded into memory on startup
+        config.addDefault("cache.max_users", 1000); // Player profiles kept in memory
+        config.addDefault("auto_translate.timeout_ms", 2000); // How late an automatic translation can still be shown
+        config.addDefault("ingestion.batch_size", 200); // Max chat messages written to the database in one transaction
+        config.addDefault("ingestion.flush_interval_ms", 250); // How often queued chat messages are written
+        config.addDefault("ingestion.queue_capacity", 10000); // Max chat messages waiting to be written
+        config.addDefault("ingestion.overflow_policy", "drop_oldest"); // drop_oldest, drop_newest or coalesce
+        config.addDefault("retention.enabled", true); // Delete old chat messages in the background
+        config.addDefault("retention.interval_minutes", 60); // How often old chat messages are deleted
+        config.addDefault("retention.batch_size", 500); // Max rows deleted in one go
+        config.addDefault("retention.pause_ms", 100); // Pause between batches, so chat isn't held up
+        config.addDefault("retention.lookup.max_age_days", 30); // How long a chat message can be clicked to translate; 0 for no limit
+        config.addDefault("retention.lookup.max_rows", 5000000); // Max clickable chat messages kept; 0 for no limit
+        config.addDefault("retention.user_message.max_age_days", 30); // How long unreferenced Minecraft messages are kept; 0 for no limit
+        config.addDefault("retention.user_message.max_rows", 1000000); // Max Minecraft messages kept; 0 for no limit
+
+        config.addDefault("geolocation.resolvers", List.of("database", "ip-api")); // Tried in order until one knows the address
+        config.addDefault("geolocation.database", "ip-country.csv"); // IP range to country CSV in the plugin folder
+        config.addDefault("geolocation.http_timeout_ms", 2000); // How long to wait for ip-api.com
+        config.addDefault("geolocation.cache_size", 10000); // ip-api.com answers kept in memory
 
         config.addDefault("storage.type", "sqlite");
         config.addDefault("storage.sqlite.file", "kosuzu.db");
+        config.addDefault("storage.sqlite.mmap_size", 268435456); // Bytes of the database file memory-mapped for reads
+        config.addDefault("storage.sqlite.cache_size_kb", 16384); // Page cache per connection
         config.addDefault("storage.mysql.host", "localhost");
         config.addDefault("storage.mysql.port", 3306);
         config.addDefault("storage.mysql.database", "kosuzu");
         config.addDefault("storage.mysql.username", "kosuzu");
         config.addDefault("storage.mysql.password", "changeme");
 
-        var regexDefaults = List.of(
-            "^<[^>]+> (.*)", // Vanilla
-            "^[^\\[][^»]+» (.*)", // Discord
-            "^(?::build:|:dev_server:).+?: (.*)" // Chatty
-        );
-
-        config.addDefault("match.include", regexDefaults);
+        config.addDefault("match.include", KosuzuParsesEverything.DEFAULT_PATTERNS);
 
         config.addDefault("match.blacklist", Collections.<String>emptyList());
 
@@ -66,6 +107,9 @@ public final class Kosuzu extends JavaPlugin {
         saveConfig();
 
         database = new KosuzuRemembersEverything(this);
+        cache = new KosuzuCachesEverything(this);
+        cache.warm();
+        translator = new KosuzuTranslatesEverything(this);
 
         var autocompleteHandler = new KosuzuHintsEverything(this);
         var commandHandler = new KosuzuLearnsEverything(this);
@@ -80,6 +124,9 @@ public final class Kosuzu extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        if (translator != null)
+            translator.close();
+
         if (database != null)
             database.close();
     }
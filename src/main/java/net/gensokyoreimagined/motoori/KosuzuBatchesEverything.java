@@ -0,0 +1,134 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import net.gensokyoreimagined.motoori.KosuzuTranslationModels.TranslatedText;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces translation requests made within a short window into one multi-text DeepL request per target language.
+ * When a wave of players clicks the same burst of messages, this turns hundreds of round-trips into a handful.
+ */
+public class KosuzuBatchesEverything implements Closeable {
+    /**
+     * DeepL accepts at most 50 texts per request
+     */
+    public static final int MAX_BATCH_SIZE = 50;
+
+    private final Logger logger;
+    private final KosuzuTranslatesEverything translator;
+    private final ScheduledExecutorService timer;
+    private final long window;
+    private final int maxBatchSize;
+
+    // Guarded by itself
+    private final Map<String, List<PendingTranslation>> pending = new HashMap<>();
+
+    private record PendingTranslation(String text, CompletableFuture<TranslatedText> future) {}
+
+    public KosuzuBatchesEverything(Kosuzu kosuzu, KosuzuTranslatesEverything translator) {
+        this.translator = translator;
+        logger = kosuzu.getLogger();
+
+        var config = kosuzu.config;
+        window = Math.max(0, config.getLong("batching.window_ms", 100));
+        maxBatchSize = Math.max(1, Math.min(config.getInt("batching.max_size", MAX_BATCH_SIZE), MAX_BATCH_SIZE));
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Kosuzu Batch Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a text for translation; it will be sent along with everything else queued for the same language
+     * @param text The text to translate
+     * @param language The language to translate into
+     * @return A future completing with the translation, or with null if the translation failed
+     */
+    public CompletableFuture<TranslatedText> submit(@NotNull String text, @NotNull String language) {
+        var request = new PendingTranslation(text, new CompletableFuture<>());
+        List<PendingTranslation> full = null;
+
+        synchronized (pending) {
+            var queue = pending.computeIfAbsent(language, key -> new ArrayList<>());
+            queue.add(request);
+
+            if (queue.size() >= maxBatchSize || window == 0) {
+                full = pending.remove(language);
+            } else if (queue.size() == 1) {
+                // First request for this language opens the window
+                timer.schedule(() -> flush(language), window, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full != null) {
+            dispatch(language, full);
+        }
+
+        return request.future();
+    }
+
+    private void flush(String language) {
+        List<PendingTranslation> batch;
+
+        synchronized (pending) {
+            batch = pending.remove(language);
+        }
+
+        // Already sent because it filled up before the window closed
+        if (batch != null) {
+            dispatch(language, batch);
+        }
+    }
+
+    private void dispatch(String language, List<PendingTranslation> batch) {
+        var texts = batch.stream().map(PendingTranslation::text).toList();
+
+        // Sent asynchronously, so no thread waits on DeepL
+        translator.translateBatch(texts, language).whenComplete((translations, e) -> {
+            if (e != null) {
+                logger.warning("Failed to translate batch of " + batch.size() + " texts: " + e.getMessage());
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future().complete(translations == null ? null : translations.get(i));
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+
+        synchronized (pending) {
+            pending.values().forEach(batch -> batch.forEach(request -> request.future().complete(null)));
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker for one translation backend. Outcomes are kept in a rolling window; once too many of them failed
+ * or were slow, the breaker opens and the backend gets no requests for a while. After that a few probe requests are let
+ * through (half-open): if they all succeed the breaker closes again, if any fails it opens again.
+ */
+public class KosuzuBreaksEverything {
+    public enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    /**
+     * Upper bounds (inclusive, in milliseconds) of the latency histogram buckets; the last bucket holds everything slower
+     */
+    public static final long[] LATENCY_BUCKETS = {100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * The rolling window is this many buckets; the oldest one is dropped as time moves on
+     */
+    private static final int WINDOW_BUCKETS = 10;
+
+    private final String name;
+    private final Logger logger;
+
+    private final long bucketMs;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallMs;
+    private final double slowCallRate;
+    private final long openMs;
+    private final int probes;
+
+    // Everything below is guarded by this
+    private final long[] bucketStart = new long[WINDOW_BUCKETS];
+    private final int[] bucketCalls = new int[WINDOW_BUCKETS];
+    private final int[] bucketFailures = new int[WINDOW_BUCKETS];
+    private final int[] bucketSlowCalls = new int[WINDOW_BUCKETS];
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long trips;
+
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+    /**
+     * @param name The backend's name, for logs and /kosuzu stats
+     */
+    public KosuzuBreaksEverything(@NotNull String name, @NotNull FileConfiguration config, @NotNull Logger logger) {
+        this.name = name;
+        this.logger = logger;
+
+        bucketMs = Math.max(WINDOW_BUCKETS, TimeUnit.SECONDS.toMillis(config.getLong("circuit_breaker.window_seconds", 60))) / WINDOW_BUCKETS;
+        minCalls = Math.max(1, config.getInt("circuit_breaker.min_calls", 10));
+        failureRate = Math.max(0, Math.min(100, config.getDouble("circuit_breaker.failure_rate", 50))) / 100;
+        slowCallMs = Math.max(1, config.getLong("circuit_breaker.slow_call_ms", 5000));
+        slowCallRate = Math.max(0, Math.min(100, config.getDouble("circuit_breaker.slow_call_rate", 80))) / 100;
+        openMs = Math.max(1, TimeUnit.SECONDS.toMillis(config.getLong("circuit_breaker.open_seconds", 30)));
+        probes = Math.max(1, config.getInt("circuit_breaker.half_open_probes", 3));
+    }
+
+    public @NotNull String getName() {
+        return name;
+    }
+
+    /**
+     * Asks to send a request to the backend; every call that returns true must be followed by {@link #record}
+     * @return False if the breaker is open, or half-open with all its probes already out
+     */
+    public synchronized boolean tryAcquire() {
+        var now = System.currentTimeMillis();
+
+        if (state == State.OPEN) {
+            if (now - openedAt < openMs) {
+                return false;
+            }
+
+            transition(State.HALF_OPEN);
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + probeSuccesses >= probes) {
+                return false;
+            }
+
+            probesInFlight++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records the outcome of a request allowed by {@link #tryAcquire}
+     * @param success False if the backend failed: rate limited us, had a server error, didn't answer,
+     * or rejected our key or quota
+     * @param latencyMs How long the backend took to answer
+     */
+    public void record(boolean success, long latencyMs) {
+        var bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && latencyMs > LATENCY_BUCKETS[bucket]) bucket++;
+        latencies.incrementAndGet(bucket);
+
+        var slow = latencyMs >= slowCallMs;
+
+        synchronized (this) {
+            var now = System.currentTimeMillis();
+
+            if (state == State.HALF_OPEN) {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+
+                if (!success || slow) {
+                    open(now);
+                } else if (++probeSuccesses >= probes) {
+                    clearWindow();
+                    transition(State.CLOSED);
+                }
+
+                return;
+            }
+
+            if (state == State.OPEN) {
+                // A request from before the breaker opened; it doesn't change anything
+                return;
+            }
+
+            var index = bucketIndex(now);
+            bucketCalls[index]++;
+            if (!success) bucketFailures[index]++;
+            if (slow) bucketSlowCalls[index]++;
+
+            var window = window(now);
+            if (window.calls() >= minCalls && (window.failureRate() >= failureRate || window.slowCallRate() >= slowCallRate)) {
+                open(now);
+            }
+        }
+    }
+
+    /**
+     * @return The share of requests in the rolling window that failed or were slow, between 0 and 1
+     */
+    public synchronized double getUnhealthyRate() {
+        var window = window(System.currentTimeMillis());
+        return window.calls() == 0 ? 0 : Math.max(window.failureRate(), window.slowCallRate());
+    }
+
+    public synchronized @NotNull State getState() {
+        // Report an open breaker that is ready for probes as half-open, as that's how it will behave
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMs) {
+            return State.HALF_OPEN;
+        }
+
+        return state;
+    }
+
+    /**
+     * @return The number of times the breaker has opened since the server started
+     */
+    public synchronized long getTrips() {
+        return trips;
+    }
+
+    /**
+     * @return The requests, failures and slow requests in the rolling window
+     */
+    public synchronized @NotNull Window getWindow() {
+        return window(System.currentTimeMillis());
+    }
+
+    /**
+     * @return The number of requests in each bucket of {@link #LATENCY_BUCKETS} since the server started
+     */
+    public long @NotNull [] getLatencyHistogram() {
+        var histogram = new long[latencies.length()];
+
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latencies.get(i);
+        }
+
+        return histogram;
+    }
+
+    public record Window(int calls, int failures, int slowCalls) {
+        double failureRate() {
+            return calls == 0 ? 0 : failures / (double) calls;
+        }
+
+        double slowCallRate() {
+            return calls == 0 ? 0 : slowCalls / (double) calls;
+        }
+    }
+
+    private void open(long now) {
+        openedAt = now;
+        trips++;
+        transition(State.OPEN);
+    }
+
+    private void transition(State next) {
+        if (state == next) return;
+
+        if (next == State.OPEN) {
+            logger.warning("Stopped sending translations to " + name + " for " + openMs / 1000 + " seconds, it has been failing or slow (" + state + " -> " + next + ")");
+        } else {
+            logger.info("Circuit breaker for " + name + " is now " + next + " (was " + state + ")");
+        }
+
+        state = next;
+    }
+
+    private int bucketIndex(long now) {
+        var start = now - now % bucketMs;
+        var index = (int) ((now / bucketMs) % WINDOW_BUCKETS);
+
+        // The slot still holds an older bucket; reuse it
+        if (bucketStart[index] != start) {
+            bucketStart[index] = start;
+            bucketCalls[index] = 0;
+            bucketFailures[index] = 0;
+            bucketSlowCalls[index] = 0;
+        }
+
+        return index;
+    }
+
+    private Window window(long now) {
+        var oldest = now - now % bucketMs - (WINDOW_BUCKETS - 1) * bucketMs;
+        int calls = 0, failures = 0, slowCalls = 0;
+
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            if (bucketStart[i] >= oldest) {
+                calls += bucketCalls[i];
+                failures += bucketFailures[i];
+                slowCalls += bucketSlowCalls[i];
+            }
+        }
+
+        return new Window(calls, failures, slowCalls);
+    }
+
+    private void clearWindow() {
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            bucketStart[i] = 0;
+            bucketCalls[i] = 0;
+            bucketFailures[i] = 0;
+            bucketSlowCalls[i] = 0;
+        }
+    }
+}
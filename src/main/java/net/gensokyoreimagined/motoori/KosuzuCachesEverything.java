@@ -0,0 +1,97 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.logging.Logger;
+
+/**
+ * In-memory tier in front of the `message_translation` table, keyed by normalized text and target language.
+ * Hot phrases ("gg", "hello", "lol") are answered from here without touching SQL or DeepL.
+ */
+public class KosuzuCachesEverything {
+    private final Logger logger;
+    private final KosuzuRemembersEverything database;
+    private final Cache<CacheKey, CachedTranslation> cache;
+    private final int warmCount;
+
+    private record CacheKey(String text, String language) {}
+
+    /**
+     * A translation as it is kept in memory
+     * @param text The translated text
+     * @param sourceLanguage The language the original text was detected as
+     */
+    public record CachedTranslation(String text, String sourceLanguage) {}
+
+    public KosuzuCachesEverything(Kosuzu kosuzu) {
+        logger = kosuzu.getLogger();
+        database = kosuzu.database;
+
+        var config = kosuzu.config;
+        warmCount = config.getInt("cache.warm_count", 5000);
+
+        // Weighed by characters so a handful of long messages can't push out thousands of short ones
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(config.getLong("cache.max_characters", 2_000_000))
+                .<CacheKey, CachedTranslation>weigher((key, value) -> key.text().length() + value.text().length())
+                .recordStats()
+                .build();
+    }
+
+    private static CacheKey key(String text, String language) {
+        return new CacheKey(KosuzuTranslatesEverything.normalize(text), language.toUpperCase());
+    }
+
+    public @Nullable CachedTranslation get(@NotNull String text, @NotNull String language) {
+        return cache.getIfPresent(key(text, language));
+    }
+
+    public void put(@NotNull String text, @NotNull String language, @NotNull String translation, @NotNull String sourceLanguage) {
+        cache.put(key(text, language), new CachedTranslation(translation, sourceLanguage));
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return Hit, miss and eviction counters since the plugin was enabled
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Loads the most recent translations from the database so that the cache is useful straight after a restart
+     */
+    public void warm() {
+        if (warmCount <= 0) {
+            return;
+        }
+
+        database.runAsync(() -> {
+            var translations = database.getRecentTranslations(warmCount);
+            translations.forEach(translation -> put(translation.originalText(), translation.language(), translation.text(), translation.sourceLanguage()));
+            logger.info("Warmed translation cache with " + translations.size() + " translations");
+        });
+    }
+}
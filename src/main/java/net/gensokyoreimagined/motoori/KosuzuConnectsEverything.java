@@ -0,0 +1,188 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLSession;
+import java.io.Closeable;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The HTTP transport shared by every DeepL request: one client, so connections (and their TLS handshakes) are reused
+ * across bursts of translations, with HTTP/2 where DeepL offers it so a whole burst shares a single connection.
+ * Every request gets a timeout, so a hung socket fails the translation instead of holding it forever.
+ */
+public class KosuzuConnectsEverything implements Closeable {
+    private final Logger logger;
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final ExecutorService reader = Executors.newVirtualThreadPerTaskExecutor();
+    private final Duration requestTimeout;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong http2Requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * TLS sessions seen recently; a response on a session not seen before means a new connection was opened.
+     * The client doesn't expose its connection pool, so this is the closest thing to counting its handshakes.
+     */
+    private final Cache<String, Boolean> sessions = CacheBuilder
+            .newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .maximumSize(1000)
+            .build();
+
+    public KosuzuConnectsEverything(Kosuzu kosuzu) {
+        logger = kosuzu.getLogger();
+
+        var config = kosuzu.config;
+        var connectTimeout = Duration.ofMillis(Math.max(1, config.getLong("http.connect_timeout_ms", 5000)));
+        requestTimeout = Duration.ofMillis(Math.max(1, config.getLong("http.request_timeout_ms", 10000)));
+        var threads = Math.max(1, config.getInt("http.threads", 4));
+
+        var count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "Kosuzu HTTP #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Connections are kept alive and pooled by the client itself; HTTP/2 falls back to HTTP/1.1 if not offered
+        client = HttpClient
+                .newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .followRedirects(HttpClient.Redirect.ALWAYS)
+                .build();
+    }
+
+    /**
+     * Sends a request with the configured timeout
+     * @param request The request, without a timeout
+     * @param handler How to read the response body
+     * @return A future of the response; completes exceptionally with an HttpTimeoutException if it took too long
+     */
+    public <T> CompletableFuture<HttpResponse<T>> send(@NotNull HttpRequest.Builder request, @NotNull HttpResponse.BodyHandler<T> handler) {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+
+        return client.sendAsync(request.timeout(requestTimeout).build(), handler).whenComplete((response, e) -> {
+            inFlight.decrementAndGet();
+
+            if (e != null) {
+                failures.incrementAndGet();
+                return;
+            }
+
+            if (response.version() == HttpClient.Version.HTTP_2) {
+                http2Requests.incrementAndGet();
+            }
+
+            response.sslSession().ifPresent(this::countSession);
+        });
+    }
+
+    /**
+     * @return Where response bodies are read; reading blocks until the body has arrived,
+     * which would starve the client of the threads it needs to deliver it if done on its own executor
+     */
+    public ExecutorService getReader() {
+        return reader;
+    }
+
+    private void countSession(SSLSession session) {
+        var key = HexFormat.of().formatHex(session.getId()) + "@" + session.getCreationTime();
+
+        if (sessions.asMap().putIfAbsent(key, true) == null) {
+            handshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of requests sent since the server started
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of responses that came back over HTTP/2
+     */
+    public long getHttp2Requests() {
+        return http2Requests.get();
+    }
+
+    /**
+     * @return The number of requests that got no response at all, e.g. timed out or couldn't connect
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The number of TLS handshakes, i.e. new connections, since the server started
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return The number of requests waiting on a response, i.e. the open streams across all connections
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The fraction of responses that came over an already open connection
+     */
+    public double getReuseRatio() {
+        var answered = requests.get() - failures.get() - inFlight.get();
+        return answered <= 0 ? 0 : Math.max(0, answered - handshakes.get()) / (double) answered;
+    }
+
+    @Override
+    public void close() {
+        reader.shutdownNow();
+        executor.shutdownNow();
+
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for DeepL requests to stop!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
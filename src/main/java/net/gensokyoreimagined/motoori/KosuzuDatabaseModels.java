@@ -15,23 +15,26 @@
 
 package net.gensokyoreimagined.motoori;
 
+import com.google.common.hash.HashCode;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class KosuzuDatabaseModels {
     public record Language(String code, String nativeName, String englishName) {}
 
     public static class Translation {
         private final String messageJson;
-        private final UUID originalTextMessageId;
+        private final @Nullable UUID originalTextMessageId;
         private @Nullable String originalTextLanguageCode;
         private final String originalTextMessage;
         private final String requestedLanguageCode;
         private @Nullable String translatedTextMessage;
 
-        public Translation(String messageJson, UUID originalTextMessageId, @Nullable String originalTextLanguageCode, String originalTextMessage, @Nullable String translatedTextMessage, String requestedLanguageCode) {
+        public Translation(String messageJson, @Nullable UUID originalTextMessageId, @Nullable String originalTextLanguageCode, String originalTextMessage, @Nullable String translatedTextMessage, String requestedLanguageCode) {
             this.messageJson = messageJson;
             this.originalTextMessageId = originalTextMessageId;
             this.originalTextLanguageCode = originalTextLanguageCode;
@@ -40,6 +43,13 @@ public class KosuzuDatabaseModels {
             this.requestedLanguageCode = requestedLanguageCode;
         }
 
+        /**
+         * Creates an already-translated message from the in-memory translation cache, skipping the database entirely
+         */
+        public static Translation fromCache(String messageJson, String originalTextMessage, KosuzuCachesEverything.CachedTranslation cached, String requestedLanguageCode) {
+            return new Translation(messageJson, null, cached.sourceLanguage(), originalTextMessage, cached.text(), requestedLanguageCode);
+        }
+
         public String getMessageJson() { return messageJson; }
         public @Nullable String getOriginalTextLanguageCode() { return originalTextLanguageCode; }
         public String getOriginalTextMessage() { return originalTextMessage; }
@@ -47,15 +57,37 @@ public class KosuzuDatabaseModels {
 
         public @Nullable String getTranslatedTextMessage() { return translatedTextMessage; }
 
-        public void loadTranslatedTextMessage(KosuzuTranslatesEverything translator, KosuzuRemembersEverything database) {
+        /**
+         * Translates the message if it hasn't been translated into the requested language yet
+         * @param requester The player asking for the translation, for rate limiting
+         * @return A future that completes once the translation is loaded; the translation is left empty if it failed
+         */
+        public CompletableFuture<Void> loadTranslatedTextMessage(KosuzuTranslatesEverything translator, KosuzuRemembersEverything database, @Nullable UUID requester) {
             if (originalTextLanguageCode != null && translatedTextMessage != null) {
-                return;
+                return CompletableFuture.completedFuture(null);
             }
 
-            var translation = translator.translate(originalTextMessage, requestedLanguageCode);
-            originalTextLanguageCode = translation.detectedSourceLanguage;
-            translatedTextMessage = translation.text;
-            database.addTranslation(originalTextMessageId, translation.text, requestedLanguageCode, translation.detectedSourceLanguage);
+            // Already in the requested language (as detected when the message was stored), nothing to translate
+            if (KosuzuTranslatesEverything.isSameLanguage(originalTextLanguageCode, requestedLanguageCode)) {
+                translatedTextMessage = originalTextMessage;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return translator.translate(originalTextMessage, requestedLanguageCode, requester).thenAccept(translation -> {
+                // Every backend failed, or answered without a text or a detected language; leave it untranslated
+                if (translation == null || translation.text() == null || translation.sourceLanguage() == null) {
+                    return;
+                }
+
+                originalTextLanguageCode = translation.sourceLanguage();
+                translatedTextMessage = translation.text();
+
+                if (originalTextMessageId == null) {
+                    return;
+                }
+
+                database.runAsync(() -> database.addTranslation(originalTextMessageId, translation.text(), requestedLanguageCode, translation.sourceLanguage()));
+            });
         }
     }
 
@@ -88,7 +120,42 @@ public class KosuzuDatabaseModels {
         }
     }
 
-    public record User(UUID uuid, String lastKnownName, String defaultLanguage, TranslationMode translationMode) {}
+    /**
+     * A chat message waiting to be written to the database
+     * @param lookup The UUID handed out for the message before it was written
+     * @param hash The fingerprint of the Minecraft message, which identifies it in the database
+     * @param json The JSON Minecraft message
+     * @param text The plain text of the message
+     */
+    public record PendingMessage(UUID lookup, HashCode hash, String json, String text) {}
+
+    /**
+     * A stored translation together with the message it translates
+     */
+    public record StoredTranslation(String originalText, String sourceLanguage, String language, String text) {}
+
+    /**
+     * Rows deleted by one round of cleaning up old messages
+     */
+    public record Reclaimed(int userMessages, int messages, int translations) {}
+
+    /**
+     * Everything Kosuzu knows about a player, kept in memory while they're online
+     * @param languages The languages the player understands besides their default language
+     */
+    public record User(UUID uuid, @Nullable String lastKnownName, String defaultLanguage, TranslationMode translationMode, Set<String> languages) {
+        public User {
+            languages = Set.copyOf(languages);
+        }
+
+        public User withDefaultLanguage(String defaultLanguage) {
+            return new User(uuid, lastKnownName, defaultLanguage, translationMode, languages);
+        }
+
+        public User withTranslationMode(TranslationMode translationMode) {
+            return new User(uuid, lastKnownName, defaultLanguage, translationMode, languages);
+        }
+    }
 
     public enum TranslationMode {
         OFF(0), ON(1), FORCE(2);
@@ -101,5 +168,15 @@ public class KosuzuDatabaseModels {
         public int getValue() {
             return value;
         }
+
+        public static TranslationMode fromValue(int value) {
+            for (var mode : values()) {
+                if (mode.value == value) {
+                    return mode;
+                }
+            }
+
+            return OFF;
+        }
     }
 }
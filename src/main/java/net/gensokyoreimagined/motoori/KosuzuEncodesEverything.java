@@ -0,0 +1,348 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.gensokyoreimagined.motoori.KosuzuTranslationModels.TranslatedText;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.http.HttpRequest;
+import java.nio.channels.Channels;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads and writes DeepL request and response bodies as streams, so a batch of translations never exists as a JSON
+ * string or as a tree of model objects: requests are written straight into the bytes sent, and only the fields we use
+ * are picked out of responses as they're decoded.
+ * The bodies are the same as the ones Gson made from the request models these replaced, field for field and in order.
+ */
+public class KosuzuEncodesEverything {
+    private static final Random random = new Random();
+
+    private KosuzuEncodesEverything() {}
+
+    /**
+     * The size of the byte buffers used to encode and decode, well under the 8 KiB OutputStreamWriter and
+     * InputStreamReader would allocate per body, since most bodies are a few hundred bytes
+     */
+    private static final int BUFFER_SIZE = 512;
+
+    /**
+     * A request body, handed to the HTTP client without being copied
+     */
+    public static class Body extends ByteArrayOutputStream {
+        Body(int size) {
+            super(size);
+        }
+
+        public HttpRequest.BodyPublisher publisher() {
+            return HttpRequest.BodyPublishers.ofByteArray(buf, 0, count);
+        }
+
+        /**
+         * @return A writer encoding straight into the body; unpaired surrogates become '?', as with String.getBytes
+         */
+        Writer writer() {
+            var encoder = StandardCharsets.UTF_8
+                    .newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            // The encoder copies every string it's given, and JsonWriter writes a string in many small pieces,
+            // so they're gathered into chunks first
+            return new BufferedWriter(Channels.newWriter(Channels.newChannel(this), encoder, BUFFER_SIZE), BUFFER_SIZE / 2);
+        }
+    }
+
+    /**
+     * @return A reader decoding the stream as it arrives; malformed bytes become U+FFFD, as with InputStreamReader
+     */
+    private static Reader reader(InputStream in) {
+        var decoder = StandardCharsets.UTF_8
+                .newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        return Channels.newReader(Channels.newChannel(in), decoder, BUFFER_SIZE);
+    }
+
+    /**
+     * Writes an official API request: {"text":[...],"target_lang":"..."}
+     */
+    public static @NotNull Body writeApiRequest(@NotNull List<String> inputs, @NotNull String language) {
+        var body = new Body(estimateSize(inputs));
+
+        try (var writer = body.writer()) {
+            var json = newWriter(writer);
+            json.beginObject();
+
+            json.name("text").beginArray();
+            for (var input : inputs) {
+                json.value(input);
+            }
+            json.endArray();
+
+            json.name("target_lang").value(language);
+            json.endObject();
+            json.flush();
+        } catch (IOException e) {
+            // Only writing to memory
+            throw new UncheckedIOException(e);
+        }
+
+        return body;
+    }
+
+    /**
+     * Writes a mobile API job, with the id, timestamp and spacing the app would use for it
+     */
+    public static @NotNull Body writeMobileRequest(@NotNull List<String> inputs, @NotNull String language) {
+        var body = new Body(estimateSize(inputs) + 256);
+        var id = nextMobileId();
+
+        try (var writer = body.writer()) {
+            // Written by hand up to the params, as JsonWriter won't put spaces around a colon
+            writer.write("{\"jsonrpc\":\"2.0\",\"method\"");
+            writer.write(hasSpacedMethod(id) ? " : " : ":");
+            writer.write("\"LMT_handle_texts\",\"params\":");
+
+            writeMobileParams(writer, inputs, language);
+
+            writer.write(",\"id\":");
+            writer.write(Long.toString(id));
+            writer.write('}');
+        } catch (IOException e) {
+            // Only writing to memory
+            throw new UncheckedIOException(e);
+        }
+
+        return body;
+    }
+
+    private static void writeMobileParams(Writer writer, List<String> inputs, String language) throws IOException {
+        var json = newWriter(writer);
+        json.beginObject();
+
+        json.name("texts").beginArray();
+        for (var input : inputs) {
+            json.beginObject();
+            json.name("text").value(input);
+            json.name("requestAlternatives").value(0);
+            json.endObject();
+        }
+        json.endArray();
+
+        json.name("splitting").value("newlines");
+
+        json.name("lang").beginObject();
+        json.name("source_lang_user_selected").value("AUTO");
+        json.name("target_lang").value(language);
+        json.endObject();
+
+        json.name("timestamp").value(mobileTimestamp(inputs));
+        json.endObject();
+
+        // Not closed, since the rest of the job goes to the same writer
+        json.flush();
+    }
+
+    private static long nextMobileId() {
+        synchronized (random) {
+            random.setSeed(System.currentTimeMillis());
+            return random.nextLong(8300000, 8399998) * 1000; // ??? why
+        }
+    }
+
+    /**
+     * @return Whether the job's JSON should have spaces around the colon after "method", as the app's does for some ids
+     */
+    private static boolean hasSpacedMethod(long id) {
+        return (id + 5) % 29 == 0 || (id + 3) % 13 == 0;
+    }
+
+    private static long mobileTimestamp(List<String> inputs) {
+        // chat i have no idea why they implemented it like this (not the stream but the count)
+        // see PyDeepLX for more info; the web client counts across every text in the job
+        var numberOfIsInText = inputs.stream().flatMapToInt(String::chars).filter(letter -> (char) letter == 'i').count();
+        var actualTimestamp = System.currentTimeMillis();
+
+        if (numberOfIsInText == 0) {
+            return actualTimestamp;
+        }
+
+        numberOfIsInText += 1;
+        return actualTimestamp - (actualTimestamp % numberOfIsInText) + numberOfIsInText;
+    }
+
+    /**
+     * Reads an official API response: {"translations":[{"detected_source_language":"EN","text":"..."}]}
+     * @return The translations in order, or null if the response has none
+     */
+    public static @Nullable List<TranslatedText> readApiResponse(@NotNull InputStream in) throws IOException {
+        List<TranslatedText> translations = null;
+
+        try (var json = new JsonReader(reader(in))) {
+            json.beginObject();
+
+            while (json.hasNext()) {
+                if (!json.nextName().equals("translations") || json.peek() != JsonToken.BEGIN_ARRAY) {
+                    json.skipValue();
+                    continue;
+                }
+
+                translations = new ArrayList<>();
+                json.beginArray();
+
+                while (json.hasNext()) {
+                    String text = null;
+                    String sourceLanguage = null;
+
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        switch (json.nextName()) {
+                            case "text" -> text = nextString(json);
+                            case "detected_source_language" -> sourceLanguage = nextString(json);
+                            default -> json.skipValue();
+                        }
+                    }
+                    json.endObject();
+
+                    translations.add(new TranslatedText(text, sourceLanguage));
+                }
+
+                json.endArray();
+            }
+
+            json.endObject();
+        }
+
+        return translations;
+    }
+
+    /**
+     * Reads a mobile API response: {"result":{"texts":[{"text":"..."}],"lang":"EN"}}; everything else is skipped.
+     * The mobile API only detects one source language per job, so every translation shares it.
+     * @return The translations in order, or null if the response has none, e.g. it's a JSON-RPC error
+     */
+    public static @Nullable List<TranslatedText> readMobileResponse(@NotNull InputStream in) throws IOException {
+        List<String> texts = null;
+        String sourceLanguage = null;
+
+        try (var json = new JsonReader(reader(in))) {
+            json.beginObject();
+
+            while (json.hasNext()) {
+                if (!json.nextName().equals("result") || json.peek() != JsonToken.BEGIN_OBJECT) {
+                    json.skipValue();
+                    continue;
+                }
+
+                json.beginObject();
+
+                while (json.hasNext()) {
+                    var name = json.nextName();
+
+                    if (name.equals("lang")) {
+                        sourceLanguage = nextString(json);
+                    } else if (name.equals("texts") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        texts = new ArrayList<>();
+                        json.beginArray();
+
+                        while (json.hasNext()) {
+                            String text = null;
+
+                            json.beginObject();
+                            while (json.hasNext()) {
+                                if (json.nextName().equals("text")) {
+                                    text = nextString(json);
+                                } else {
+                                    json.skipValue();
+                                }
+                            }
+                            json.endObject();
+
+                            texts.add(text);
+                        }
+
+                        json.endArray();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+
+                json.endObject();
+            }
+
+            json.endObject();
+        }
+
+        if (texts == null) {
+            return null;
+        }
+
+        var translations = new ArrayList<TranslatedText>(texts.size());
+        for (var text : texts) {
+            translations.add(new TranslatedText(text, sourceLanguage));
+        }
+
+        return translations;
+    }
+
+    /**
+     * @return A writer escaping like Gson does by default, i.e. with < > & = ' escaped
+     */
+    private static JsonWriter newWriter(Writer writer) {
+        var json = new JsonWriter(writer);
+        json.setHtmlSafe(true);
+        return json;
+    }
+
+    private static @Nullable String nextString(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+
+        return json.nextString();
+    }
+
+    /**
+     * @return Roughly the UTF-8 size of the texts, so the body seldom needs to grow
+     */
+    private static int estimateSize(List<String> inputs) {
+        var size = 64;
+
+        for (var input : inputs) {
+            size += input.length() + 48;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,230 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Strips a set of literal strings from text in a single pass, however many there are (Aho-Corasick).
+ * Built once from match.blacklist; messages without a blacklisted literal come back as the very same objects.
+ */
+public class KosuzuFiltersEverything {
+    private static final int ROOT = 0;
+
+    // For each state, its transitions as parallel arrays sorted by character
+    private final char[][] labels;
+    private final int[][] targets;
+
+    private final int[] failure;
+    /**
+     * Length of the literal ending at each state, or 0 if none does
+     */
+    private final int[] lengths;
+    /**
+     * The nearest state along the failure links where a literal ends, or -1
+     */
+    private final int[] outputs;
+
+    public KosuzuFiltersEverything(@NotNull Collection<String> literals) {
+        // Build the trie
+        var trie = new ArrayList<TreeMap<Character, Integer>>();
+        var trieLengths = new ArrayList<Integer>();
+        trie.add(new TreeMap<>());
+        trieLengths.add(0);
+
+        for (var literal : literals) {
+            if (literal.isEmpty()) continue;
+
+            var state = ROOT;
+            for (int i = 0; i < literal.length(); i++) {
+                var next = trie.get(state).get(literal.charAt(i));
+
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(literal.charAt(i), next);
+                    trie.add(new TreeMap<>());
+                    trieLengths.add(0);
+                }
+
+                state = next;
+            }
+
+            trieLengths.set(state, literal.length());
+        }
+
+        var count = trie.size();
+        labels = new char[count][];
+        targets = new int[count][];
+        failure = new int[count];
+        lengths = new int[count];
+        outputs = new int[count];
+
+        for (int state = 0; state < count; state++) {
+            var transitions = trie.get(state);
+            labels[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+
+            var i = 0;
+            for (var transition : transitions.entrySet()) {
+                labels[state][i] = transition.getKey();
+                targets[state][i] = transition.getValue();
+                i++;
+            }
+
+            lengths[state] = trieLengths.get(state);
+        }
+
+        // Breadth-first, so every state's failure link is ready before its children need it
+        outputs[ROOT] = -1;
+        var queue = new ArrayDeque<Integer>();
+
+        for (var child : targets[ROOT]) {
+            failure[child] = ROOT;
+            outputs[child] = -1;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+
+            for (int i = 0; i < labels[state].length; i++) {
+                var label = labels[state][i];
+                var child = targets[state][i];
+
+                var fallback = failure[state];
+                while (fallback != ROOT && transition(fallback, label) == -1) {
+                    fallback = failure[fallback];
+                }
+
+                var next = transition(fallback, label);
+                failure[child] = next == -1 || next == child ? ROOT : next;
+                outputs[child] = lengths[failure[child]] > 0 ? failure[child] : outputs[failure[child]];
+
+                queue.add(child);
+            }
+        }
+    }
+
+    private int transition(int state, char label) {
+        var index = Arrays.binarySearch(labels[state], label);
+        return index < 0 ? -1 : targets[state][index];
+    }
+
+    /**
+     * @return True if there is nothing to strip, so callers can skip the work entirely
+     */
+    public boolean isEmpty() {
+        return labels[ROOT].length == 0;
+    }
+
+    /**
+     * Removes every literal from the text. Where literals overlap, the leftmost (then longest) one wins.
+     * @param text The text to filter
+     * @return The filtered text, or the same instance if no literal occurs in it
+     */
+    public @NotNull String strip(@NotNull String text) {
+        if (isEmpty()) {
+            return text;
+        }
+
+        // Only allocated once a match is found, which is rare
+        List<int[]> matches = null;
+        var state = ROOT;
+
+        for (int i = 0; i < text.length(); i++) {
+            var character = text.charAt(i);
+
+            int next;
+            while ((next = transition(state, character)) == -1 && state != ROOT) {
+                state = failure[state];
+            }
+
+            state = next == -1 ? ROOT : next;
+
+            for (var output = lengths[state] > 0 ? state : outputs[state]; output != -1; output = outputs[output]) {
+                if (matches == null) matches = new ArrayList<>();
+                matches.add(new int[] { i + 1 - lengths[output], i + 1 });
+            }
+        }
+
+        if (matches == null) {
+            return text;
+        }
+
+        matches.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+
+        var output = new StringBuilder(text.length());
+        var kept = 0;
+
+        for (var match : matches) {
+            if (match[0] < kept) continue; // Overlaps a literal already removed
+
+            output.append(text, kept, match[0]);
+            kept = match[1];
+        }
+
+        return output.append(text, kept, text.length()).toString();
+    }
+
+    /**
+     * Removes every literal from the text of a component and its children.
+     * Literals are matched within each text node, like Component.replaceText does.
+     * @param component The component to filter
+     * @return The filtered component; untouched nodes (and the whole tree, if nothing matched) are reused as-is
+     */
+    public @NotNull Component strip(@NotNull Component component) {
+        if (isEmpty()) {
+            return component;
+        }
+
+        var result = component;
+
+        if (component instanceof TextComponent text) {
+            var content = strip(text.content());
+
+            if (content != text.content()) {
+                result = text.content(content);
+            }
+        }
+
+        var children = component.children();
+        List<Component> strippedChildren = null;
+
+        for (int i = 0; i < children.size(); i++) {
+            var child = children.get(i);
+            var stripped = strip(child);
+
+            if (stripped != child && strippedChildren == null) {
+                strippedChildren = new ArrayList<>(children);
+            }
+
+            if (strippedChildren != null) {
+                strippedChildren.set(i, stripped);
+            }
+        }
+
+        return strippedChildren == null ? result : result.children(strippedChildren);
+    }
+}
@@ -0,0 +1,137 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.TranslatableComponent;
+import net.kyori.adventure.text.format.Style;
+import net.kyori.adventure.text.format.TextDecoration;
+import net.kyori.adventure.text.serializer.json.JSONComponentSerializer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Fingerprints chat components: a 128-bit hash of everything that ends up in their JSON, computed by walking the
+ * component tree directly, so identical messages can be recognized without serializing them first.
+ */
+public class KosuzuHashesEverything {
+    /**
+     * Length of a fingerprint in bytes, as stored in `user_message`.`hash`
+     */
+    public static final int LENGTH = 16;
+
+    private static final HashFunction FUNCTION = Hashing.murmur3_128();
+    private static final TextDecoration[] DECORATIONS = TextDecoration.values();
+
+    // Tags, so that differently shaped trees can't feed the hasher the same sequence
+    private static final byte TEXT = 1;
+    private static final byte TRANSLATABLE = 2;
+    private static final byte OTHER = 3;
+    private static final byte ABSENT = 0;
+    private static final byte PRESENT = 1;
+
+    private KosuzuHashesEverything() {}
+
+    public static @NotNull HashCode fingerprint(@NotNull Component component) {
+        var hasher = FUNCTION.newHasher();
+        putComponent(hasher, component);
+        return hasher.hash();
+    }
+
+    private static void putComponent(Hasher hasher, Component component) {
+        if (component instanceof TextComponent text) {
+            hasher.putByte(TEXT);
+            putString(hasher, text.content());
+        } else if (component instanceof TranslatableComponent translatable) {
+            hasher.putByte(TRANSLATABLE);
+            putString(hasher, translatable.key());
+            putString(hasher, translatable.fallback());
+
+            var arguments = translatable.arguments();
+            hasher.putInt(arguments.size());
+            for (var argument : arguments) {
+                putComponent(hasher, argument.asComponent());
+            }
+        } else {
+            // Scores, selectors, keybinds and NBT hardly ever turn up in chat, so they needn't be fast
+            hasher.putByte(OTHER);
+            putString(hasher, JSONComponentSerializer.json().serialize(component.children(List.of())));
+        }
+
+        putStyle(hasher, component.style());
+
+        var children = component.children();
+        hasher.putInt(children.size());
+        for (int i = 0; i < children.size(); i++) {
+            putComponent(hasher, children.get(i));
+        }
+    }
+
+    private static void putStyle(Hasher hasher, Style style) {
+        var color = style.color();
+        hasher.putInt(color == null ? -1 : color.value());
+
+        for (var decoration : DECORATIONS) {
+            hasher.putByte((byte) style.decoration(decoration).ordinal());
+        }
+
+        var click = style.clickEvent();
+        if (click == null) {
+            hasher.putByte(ABSENT);
+        } else {
+            hasher.putByte(PRESENT);
+            hasher.putInt(click.action().ordinal());
+            putString(hasher, click.value());
+        }
+
+        var hover = style.hoverEvent();
+        if (hover == null) {
+            hasher.putByte(ABSENT);
+        } else {
+            hasher.putByte(PRESENT);
+            putString(hasher, hover.action().toString());
+
+            if (hover.value() instanceof Component value) {
+                putComponent(hasher, value);
+            } else {
+                putString(hasher, hover.value().toString());
+            }
+        }
+
+        putString(hasher, style.insertion());
+
+        var font = style.font();
+        putString(hasher, font == null ? null : font.asString());
+    }
+
+    private static void putString(Hasher hasher, @Nullable String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+            return;
+        }
+
+        // Length first, so "ab" + "c" and "a" + "bc" differ
+        hasher.putInt(value.length());
+        hasher.putUnencodedChars(value);
+    }
+}
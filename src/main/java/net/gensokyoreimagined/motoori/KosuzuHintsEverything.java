@@ -43,6 +43,11 @@ public class KosuzuHintsEverything implements TabCompleter {
                 options.add("auto");
             }
 
+            if (sender.hasPermission("kosuzu.admin")) {
+                options.add("stats");
+                options.add("vacuum");
+            }
+
             return options;
         }
 
@@ -15,26 +15,88 @@
 
 package net.gensokyoreimagined.motoori;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.Properties;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * Finds which country a player connects from, to guess their language when they first join.
+ * Asks each resolver in `geolocation.resolvers` in turn, e.g. a local IP range database and then ip-api.com.
+ */
 public class KosuzuKnowsWhereYouLive {
     private final Logger logger;
-    private final HttpClient client;
+    private final List<GeoResolver> resolvers = new ArrayList<>();
 
+    /**
+     * Where lookups run; the resolvers may block, e.g. on ip-api.com
+     */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * A way of finding an address's country
+     */
+    interface GeoResolver {
+        /**
+         * Looks the address up, blocking until it knows
+         * @return The country code, or null if the address is unknown (or the lookup failed)
+         */
+        @Nullable String country(@NotNull InetAddress address);
+    }
 
     public KosuzuKnowsWhereYouLive(Kosuzu kosuzu) {
         logger = kosuzu.getLogger();
-        client = HttpClient.newHttpClient();
+
+        var config = kosuzu.config;
+
+        for (var id : config.getStringList("geolocation.resolvers")) {
+            switch (id.toLowerCase(Locale.ROOT)) {
+                case "database" -> {
+                    var file = kosuzu.getDataFolder().toPath().resolve(config.getString("geolocation.database", "ip-country.csv"));
+
+                    if (Files.exists(file)) {
+                        resolvers.add(new DatabaseResolver(file, logger));
+                    }
+                }
+                case "ip-api" -> resolvers.add(new IpApiResolver(config, logger));
+                default -> logger.warning("Unknown geolocation resolver " + id + " in config.yml");
+            }
+        }
+
+        if (resolvers.isEmpty()) {
+            logger.warning("No IP range database or ip-api.com to look players up with; new players' languages won't be guessed");
+        }
     }
 
     public CompletableFuture<@Nullable String> getCountryCode(Player player) {
@@ -43,7 +105,7 @@ public class KosuzuKnowsWhereYouLive {
             return CompletableFuture.completedFuture(null);
         }
 
-        return getCountryCode(address.getAddress().getHostAddress());
+        return getCountryCode(address.getAddress());
     }
 
     /**
@@ -56,29 +118,339 @@ public class KosuzuKnowsWhereYouLive {
             return CompletableFuture.completedFuture(null);
         }
 
-        if (ip.equals("127.0.0.1")) {
+        var address = RangeTable.parseLiteral(ip);
+        if (address == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return getCountryCode(address);
+    }
+
+    private CompletableFuture<@Nullable String> getCountryCode(@NotNull InetAddress address) {
+        if (address.isLoopbackAddress()) {
             logger.warning("Localhost IP address detected from player; check forwarding on proxy?");
             return CompletableFuture.completedFuture(null);
         }
 
-        //noinspection HttpUrlsUsage
-        var request = HttpRequest.newBuilder()
-            .uri(URI.create("http://ip-api.com/json/" + ip))
-            .GET()
-            .build();
+        if (address.isSiteLocalAddress() || address.isLinkLocalAddress() || address.isAnyLocalAddress()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (resolvers.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
 
-        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-            .thenApply(response -> {
-                var body = response.body();
-                var json = new Gson().fromJson(body, Properties.class);
-                if (json.contains("countryCode")) {
-                    return json.getProperty("countryCode");
+        return CompletableFuture.supplyAsync(() -> {
+            for (var resolver : resolvers) {
+                var country = resolver.country(address);
+                if (country != null) {
+                    return country;
                 }
-                return null;
-            })
-            .exceptionally(e -> {
+            }
+
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Looks addresses up in an IP range to country CSV, loaded in the background
+     */
+    static final class DatabaseResolver implements GeoResolver {
+        /**
+         * Null until loaded, or if it failed to load
+         */
+        private volatile @Nullable RangeTable table;
+
+        DatabaseResolver(@NotNull Path file, @NotNull Logger logger) {
+            // Takes a second or so for a full database, which needn't hold up startup
+            CompletableFuture.runAsync(() -> {
+                try {
+                    var start = System.nanoTime();
+                    var loaded = RangeTable.load(file);
+                    table = loaded;
+                    logger.info("Loaded " + loaded.size() + " IP ranges from " + file.getFileName() + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                } catch (IOException | RuntimeException e) {
+                    logger.severe("Failed to load the IP range database " + file + "!");
+                    logger.severe(e.getMessage());
+                }
+            });
+        }
+
+        @Override
+        public @Nullable String country(@NotNull InetAddress address) {
+            var local = table;
+            return local != null ? local.lookup(address) : null;
+        }
+    }
+
+    /**
+     * Asks ip-api.com, which allows 45 requests per minute
+     */
+    static final class IpApiResolver implements GeoResolver {
+        private final Logger logger;
+        private final Gson gson = new Gson();
+        private final HttpClient client;
+        private final Duration timeout;
+
+        /**
+         * Answers by IP address, so join waves don't run into the rate limit; concurrent lookups of an address share one request
+         */
+        private final Cache<String, Optional<String>> lookups;
+
+        IpApiResolver(@NotNull FileConfiguration config, @NotNull Logger logger) {
+            this.logger = logger;
+
+            timeout = Duration.ofMillis(Math.max(100, config.getLong("geolocation.http_timeout_ms", 2000)));
+            client = HttpClient.newBuilder().connectTimeout(timeout).build();
+
+            lookups = CacheBuilder.newBuilder()
+                    .maximumSize(Math.max(1, config.getLong("geolocation.cache_size", 10000)))
+                    .expireAfterWrite(1, TimeUnit.DAYS)
+                    .build();
+        }
+
+        @Override
+        public @Nullable String country(@NotNull InetAddress address) {
+            var ip = address.getHostAddress();
+
+            try {
+                return lookups.get(ip, () -> fetchCountryCode(ip)).orElse(null);
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                // Not remembered, so the next join can try again
                 logger.warning("Failed to get country code for " + ip);
                 return null;
-            });
+            }
+        }
+
+        private Optional<String> fetchCountryCode(@NotNull String ip) throws IOException, InterruptedException {
+            //noinspection HttpUrlsUsage
+            var request = HttpRequest.newBuilder()
+                .uri(URI.create("http://ip-api.com/json/" + ip + "?fields=status,countryCode"))
+                .timeout(timeout)
+                .GET()
+                .build();
+
+            var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new KosuzuException("ip-api.com responded with " + response.statusCode());
+            }
+
+            var json = gson.fromJson(response.body(), JsonObject.class);
+            if (json != null && json.has("countryCode")) {
+                return Optional.of(json.get("countryCode").getAsString());
+            }
+
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * IP ranges and their countries, in sorted primitive arrays searched by binary search.
+     * IPv4 addresses are unsigned 32-bit values in longs; IPv6 addresses are pairs of longs, compared unsigned.
+     */
+    static final class RangeTable {
+        private final long[] v4Starts;
+        private final long[] v4Ends;
+        private final short[] v4Countries;
+
+        private final long[] v6StartsHigh;
+        private final long[] v6StartsLow;
+        private final long[] v6EndsHigh;
+        private final long[] v6EndsLow;
+        private final short[] v6Countries;
+
+        private final String[] countries;
+
+        private record Range(long startHigh, long startLow, long endHigh, long endLow, short country) {}
+
+        private static final Comparator<Range> ORDER = (a, b) -> a.startHigh() != b.startHigh()
+                ? Long.compareUnsigned(a.startHigh(), b.startHigh())
+                : Long.compareUnsigned(a.startLow(), b.startLow());
+
+        private static final BigInteger V4_MAPPED_PREFIX = BigInteger.valueOf(0xFFFFL);
+
+        private RangeTable(List<Range> v4, List<Range> v6, String[] countries) {
+            this.countries = countries;
+
+            v4Starts = new long[v4.size()];
+            v4Ends = new long[v4.size()];
+            v4Countries = new short[v4.size()];
+
+            for (int i = 0; i < v4.size(); i++) {
+                var range = v4.get(i);
+                v4Starts[i] = range.startLow();
+                v4Ends[i] = range.endLow();
+                v4Countries[i] = range.country();
+            }
+
+            v6StartsHigh = new long[v6.size()];
+            v6StartsLow = new long[v6.size()];
+            v6EndsHigh = new long[v6.size()];
+            v6EndsLow = new long[v6.size()];
+            v6Countries = new short[v6.size()];
+
+            for (int i = 0; i < v6.size(); i++) {
+                var range = v6.get(i);
+                v6StartsHigh[i] = range.startHigh();
+                v6StartsLow[i] = range.startLow();
+                v6EndsHigh[i] = range.endHigh();
+                v6EndsLow[i] = range.endLow();
+                v6Countries[i] = range.country();
+            }
+        }
+
+        int size() {
+            return v4Starts.length + v6Countries.length;
+        }
+
+        /**
+         * @return The country code of the range holding the address, or null if none does
+         */
+        @Nullable String lookup(@NotNull InetAddress address) {
+            var bytes = address.getAddress();
+
+            if (bytes.length == 4) {
+                var value = toLong(bytes, 0, 4);
+
+                // The last range starting at or before the address
+                var index = Arrays.binarySearch(v4Starts, value);
+                if (index < 0) index = -index - 2;
+
+                return index >= 0 && value <= v4Ends[index] ? countries[v4Countries[index]] : null;
+            }
+
+            var high = toLong(bytes, 0, 8);
+            var low = toLong(bytes, 8, 8);
+
+            var lower = 0;
+            var upper = v6Countries.length - 1;
+            var index = -1;
+
+            while (lower <= upper) {
+                var middle = (lower + upper) >>> 1;
+
+                if (compare(v6StartsHigh[middle], v6StartsLow[middle], high, low) <= 0) {
+                    index = middle;
+                    lower = middle + 1;
+                } else {
+                    upper = middle - 1;
+                }
+            }
+
+            return index >= 0 && compare(high, low, v6EndsHigh[index], v6EndsLow[index]) <= 0 ? countries[v6Countries[index]] : null;
+        }
+
+        private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+            return aHigh != bHigh ? Long.compareUnsigned(aHigh, bHigh) : Long.compareUnsigned(aLow, bLow);
+        }
+
+        private static long toLong(byte[] bytes, int offset, int length) {
+            var value = 0L;
+            for (int i = offset; i < offset + length; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
+            }
+            return value;
+        }
+
+        /**
+         * Loads a CSV of start address, end address and country code, as given by e.g. DB-IP's IP to Country Lite
+         * (textual addresses) or IP2Location LITE DB1 (decimal addresses). Other columns and header lines are ignored.
+         */
+        static @NotNull RangeTable load(@NotNull Path file) throws IOException {
+            var v4 = new ArrayList<Range>();
+            var v6 = new ArrayList<Range>();
+            var countryIndexes = new HashMap<String, Short>();
+            var countries = new ArrayList<String>();
+
+            try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+                for (var line : (Iterable<String>) lines::iterator) {
+                    var fields = line.split(",", 4);
+                    if (fields.length < 3) continue;
+
+                    var start = parseAddress(unquote(fields[0]));
+                    var end = parseAddress(unquote(fields[1]));
+                    var country = unquote(fields[2]).toUpperCase();
+
+                    // Headers, and ranges with no known country
+                    if (start == null || end == null || country.length() != 2 || country.equals("ZZ")) continue;
+
+                    var index = countryIndexes.computeIfAbsent(country, key -> {
+                        countries.add(key);
+                        return (short) (countries.size() - 1);
+                    });
+
+                    var isV4 = start.bitLength() <= 32 && end.bitLength() <= 32;
+                    (isV4 ? v4 : v6).add(new Range(
+                            start.shiftRight(64).longValue(), start.longValue(),
+                            end.shiftRight(64).longValue(), end.longValue(),
+                            index
+                    ));
+                }
+            }
+
+            // The usual databases are sorted already, but it costs little to make sure
+            v4.sort(ORDER);
+            v6.sort(ORDER);
+
+            return new RangeTable(v4, v6, countries.toArray(new String[0]));
+        }
+
+        private static @NotNull String unquote(@NotNull String field) {
+            field = field.trim();
+            return field.length() >= 2 && field.startsWith("\"") && field.endsWith("\"") ? field.substring(1, field.length() - 1) : field;
+        }
+
+        /**
+         * @return The address as an unsigned number, with IPv4-mapped IPv6 addresses as IPv4, or null if it isn't one
+         */
+        private static @Nullable BigInteger parseAddress(@NotNull String field) {
+            if (field.isEmpty()) {
+                return null;
+            }
+
+            BigInteger value;
+
+            if (field.chars().allMatch(Character::isDigit)) {
+                value = new BigInteger(field);
+            } else {
+                var address = parseLiteral(field);
+                if (address == null) return null;
+                value = new BigInteger(1, address.getAddress());
+            }
+
+            // ::ffff:a.b.c.d, as IP2Location writes IPv4 ranges in its IPv6 database
+            if (value.bitLength() > 32 && value.shiftRight(32).equals(V4_MAPPED_PREFIX)) {
+                value = value.and(BigInteger.valueOf(0xFFFFFFFFL));
+            }
+
+            return value.bitLength() <= 128 ? value : null;
+        }
+
+        /**
+         * Parses an IP address without ever resolving a host name
+         * @return The address, or null if the text isn't an IP address
+         */
+        static @Nullable InetAddress parseLiteral(@NotNull String text) {
+            // Digits and dots for IPv4, or hex digits, dots and colons for IPv6, so it's never taken for a host name
+            var isV6 = text.indexOf(':') != -1;
+
+            if (!isV6 && text.indexOf('.') == -1) {
+                return null;
+            }
+
+            for (int i = 0; i < text.length(); i++) {
+                var character = text.charAt(i);
+
+                if (character != '.' && (isV6 ? character != ':' && Character.digit(character, 16) == -1 : !Character.isDigit(character))) {
+                    return null;
+                }
+            }
+
+            try {
+                return InetAddress.getByName(text);
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
     }
 }
@@ -25,18 +25,24 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.sql.SQLException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class KosuzuLearnsEverything implements CommandExecutor {
     private final Kosuzu kosuzu;
     private final KosuzuRemembersEverything database;
     private final KosuzuTranslatesEverything translator;
+    private final KosuzuCachesEverything cache;
 
     public KosuzuLearnsEverything(Kosuzu kosuzu) {
         this.kosuzu = kosuzu;
         database = kosuzu.database;
-        translator = new KosuzuTranslatesEverything(kosuzu);
+        translator = kosuzu.translator;
+        cache = kosuzu.cache;
     }
 
     @Override
@@ -47,17 +53,27 @@ public class KosuzuLearnsEverything implements CommandExecutor {
         }
 
         if (args[0].equalsIgnoreCase("default")) {
-            Bukkit.getScheduler().runTaskAsynchronously(kosuzu, () -> changeUserLanguage(sender, args));
+            database.runAsync(() -> changeUserLanguage(sender, args));
             return true;
         }
 
         if (args[0].equalsIgnoreCase("translate")) {
-            Bukkit.getScheduler().runTaskAsynchronously(kosuzu, () -> translateMessage(sender, args));
+            translateMessage(sender, args);
             return true;
         }
 
         if (args[0].equalsIgnoreCase("auto")) {
-            Bukkit.getScheduler().runTaskAsynchronously(kosuzu, () -> setAuto(sender, args));
+            database.runAsync(() -> setAuto(sender, args));
+            return true;
+        }
+
+        if (args[0].equalsIgnoreCase("stats") && sender.hasPermission("kosuzu.admin")) {
+            showStats(sender);
+            return true;
+        }
+
+        if (args[0].equalsIgnoreCase("vacuum") && sender.hasPermission("kosuzu.admin")) {
+            database.runAsync(() -> vacuum(sender));
             return true;
         }
 
@@ -68,7 +84,7 @@ public class KosuzuLearnsEverything implements CommandExecutor {
     private static void invalidSubcommand(@NotNull CommandSender sender) {
         if (sender.hasPermission("kosuzu.translate.auto")) {
             sender.sendMessage(
-                Kosuzu.HEADER.append(Component.text("/kosuzu <default|auto>", NamedTextColor.RED))
+                Kosuzu.HEADER.append(Component.text(sender.hasPermission("kosuzu.admin") ? "/kosuzu <default|auto|stats|vacuum>" : "/kosuzu <default|auto>", NamedTextColor.RED))
             );
         } else {
             sender.sendMessage(
@@ -187,7 +203,6 @@ public class KosuzuLearnsEverything implements CommandExecutor {
             uuid = bukkitPlayer.getUniqueId();
 
         UUID messageUuid;
-        var userLanguage = database.getUserDefaultLanguage(uuid);
 
         try {
             messageUuid = UUID.fromString(args[1]);
@@ -195,46 +210,212 @@ public class KosuzuLearnsEverything implements CommandExecutor {
             return;
         }
 
-        var translation = database.getTranslation(messageUuid, uuid);
-        translation.loadTranslatedTextMessage(translator, database);
+        // Nothing here holds a thread while waiting: SQL runs on virtual threads and DeepL is called asynchronously
+        final var userUuid = uuid;
+        database.supplyAsync(() -> findTranslation(messageUuid, userUuid))
+                .thenCompose(translation -> {
+                    if (translation == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+
+                    return translation.loadTranslatedTextMessage(translator, database, userUuid).thenApply(ignored -> translation);
+                })
+                .thenApplyAsync(translation -> renderTranslation(translation, database.getUserDefaultLanguage(userUuid)), database.getExecutor())
+                .exceptionally(e -> {
+                    var cause = e instanceof CompletionException ? e.getCause() : e;
+                    var userLanguage = database.getUserDefaultLanguage(userUuid);
+
+                    if (cause instanceof KosuzuThrottlesEverything.RateLimitedException) {
+                        return Kosuzu.HEADER.append(Component.text(database.getTranslation("translate.ratelimited", userLanguage), NamedTextColor.RED));
+                    }
+
+                    kosuzu.getLogger().warning("Failed to translate message " + messageUuid + ": " + cause.getMessage());
+                    return Kosuzu.HEADER.append(Component.text(database.getTranslation("translate.fail", userLanguage), NamedTextColor.RED));
+                })
+                .thenAccept(component -> Bukkit.getScheduler().runTask(kosuzu, () -> sender.sendMessage(component)));
+    }
+
+    /**
+     * Finds a translation, preferring recent messages and cached translations over the database
+     * @param messageUuid The lookup UUID of the message
+     * @param userUuid The player who wants the translation
+     * @return The translation, which may still need translating, or null if the message is unknown
+     */
+    private @Nullable KosuzuDatabaseModels.Translation findTranslation(@NotNull UUID messageUuid, @NotNull UUID userUuid) {
+        var language = database.getUserDefaultLanguage(userUuid);
+        var recent = database.getRecentMessage(messageUuid);
+
+        if (recent != null) {
+            var cached = cache.get(recent.getMessage(), language);
+
+            if (cached != null) {
+                return KosuzuDatabaseModels.Translation.fromCache(recent.getJSON(), recent.getMessage(), cached, language);
+            }
+        }
+
+        var translation = database.getTranslation(messageUuid, userUuid);
+
+        if (translation != null && translation.getTranslatedTextMessage() != null && translation.getOriginalTextLanguageCode() != null) {
+            cache.put(translation.getOriginalTextMessage(), translation.getTranslatedTextLanguageCode(), translation.getTranslatedTextMessage(), translation.getOriginalTextLanguageCode());
+        }
+
+        return translation;
+    }
+
+    private void showStats(@NotNull CommandSender sender) {
+        var stats = cache.stats();
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text(
+                "Translation cache: " + cache.size() + " entries, " + stats.hitCount() + " hits, " + stats.missCount() + " misses, " + stats.evictionCount() + " evictions",
+                NamedTextColor.GRAY
+            ))
+        );
+
+        var throttle = translator.getThrottle();
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text(
+                "Rate limiter: " + throttle.getRejectedByPlayer() + " rejected by player limit, " + throttle.getRejectedByGlobal() + " rejected by global limit",
+                NamedTextColor.GRAY
+            ))
+        );
+
+        var transport = translator.getTransport();
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text(
+                "DeepL connections: " + transport.getRequests() + " requests (" + transport.getHttp2Requests() + " over HTTP/2), " + transport.getInFlight() + " in flight, " + transport.getFailures() + " failed, " + transport.getHandshakes() + " handshakes, " + Math.round(transport.getReuseRatio() * 100) + "% reused",
+                NamedTextColor.GRAY
+            ))
+        );
+
+        var retries = translator.getRetries();
+        var failures = new StringBuilder();
+
+        retries.getFailures().forEach((status, count) -> {
+            if (!failures.isEmpty()) failures.append(", ");
+            failures.append(status == KosuzuTranslationBackends.BackendException.NO_RESPONSE ? "no response" : status).append(": ").append(count);
+        });
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text(
+                "Retries: " + retries.getRetries() + " retried, " + retries.getExhausted() + " gave up; failed requests by status: " + (failures.isEmpty() ? "none" : failures),
+                NamedTextColor.GRAY
+            ))
+        );
+
+        for (var breaker : translator.getBreakers()) {
+            var window = breaker.getWindow();
+            var histogram = breaker.getLatencyHistogram();
+            var latencies = new StringBuilder();
+
+            for (int i = 0; i < histogram.length; i++) {
+                if (i > 0) latencies.append(", ");
+                latencies.append(i < KosuzuBreaksEverything.LATENCY_BUCKETS.length ? "≤" + KosuzuBreaksEverything.LATENCY_BUCKETS[i] + " ms: " : "slower: ").append(histogram[i]);
+            }
+
+            sender.sendMessage(
+                Kosuzu.HEADER.append(Component.text(
+                    breaker.getName() + ": " + breaker.getState().name().toLowerCase().replace('_', '-') + ", " + window.calls() + " recent requests (" + window.failures() + " failed, " + window.slowCalls() + " slow), opened " + breaker.getTrips() + " times; latency " + latencies,
+                    NamedTextColor.GRAY
+                ))
+            );
+        }
+
+        var recorder = database.getRecorder();
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text(
+                "Chat ingestion: " + recorder.getDepth() + "/" + recorder.getCapacity() + " queued, " + recorder.getDropped() + " dropped, " + recorder.getCoalesced() + " coalesced (" + recorder.getPolicy().name().toLowerCase() + ")",
+                NamedTextColor.GRAY
+            ))
+        );
+
+        var retention = database.getRetention();
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text(
+                "Retention: " + retention.getDeletedLookups() + " lookups, " + retention.getDeletedUserMessages() + " Minecraft messages, " + retention.getDeletedMessages() + " messages deleted, " + retention.getReleasedPages() + " pages released",
+                NamedTextColor.GRAY
+            ))
+        );
+    }
+
+    /**
+     * Lets retention return deleted pages to the file system. The database is rewritten once to do so,
+     * and chat isn't saved until that's done, so it's left to an admin to pick a quiet moment
+     */
+    private void vacuum(@NotNull CommandSender sender) {
+        if (!database.isSqlite()) {
+            sender.sendMessage(
+                Kosuzu.HEADER.append(Component.text("MySQL reuses free space by itself, there's nothing to do", NamedTextColor.RED))
+            );
+            return;
+        }
+
+        sender.sendMessage(
+            Kosuzu.HEADER.append(Component.text("Rewriting the database, chat won't be saved until it's done...", NamedTextColor.GRAY))
+        );
+
+        var start = System.currentTimeMillis();
+
+        try {
+            var converted = database.enableIncrementalVacuum();
+
+            sender.sendMessage(
+                Kosuzu.HEADER.append(Component.text(
+                    converted ? "Enabled incremental vacuum in " + (System.currentTimeMillis() - start) + " ms; retention will now release free pages" : "Incremental vacuum is already enabled",
+                    NamedTextColor.GREEN
+                ))
+            );
+        } catch (SQLException e) {
+            kosuzu.getLogger().severe("Failed to enable incremental vacuum!");
+            kosuzu.getLogger().severe(e.getMessage());
+
+            sender.sendMessage(
+                Kosuzu.HEADER.append(Component.text("Failed to rewrite the database: " + e.getMessage(), NamedTextColor.RED))
+            );
+        }
+    }
+
+    private @NotNull Component renderTranslation(@Nullable KosuzuDatabaseModels.Translation translation, @NotNull String userLanguage) {
+        if (translation == null) {
+            return Kosuzu.HEADER.append(Component.text(database.getTranslation("translate.fail", userLanguage), NamedTextColor.RED));
+        }
+
         var translatedLanguage = translation.getTranslatedTextLanguageCode();
         var translated = translation.getTranslatedTextMessage();
         var originalLanguage = translation.getOriginalTextLanguageCode();
         var original = translation.getOriginalTextMessage();
 
         if (translated == null || originalLanguage == null || translatedLanguage == null) {
-            sender.sendMessage(
-                    Kosuzu.HEADER.append(Component.text(database.getTranslation("translate.fail", userLanguage), NamedTextColor.RED))
-            );
-
-            return;
+            return Kosuzu.HEADER.append(Component.text(database.getTranslation("translate.fail", userLanguage), NamedTextColor.RED));
         }
 
         var json = translation.getMessageJson();
         json = json.replace(original, translated);
         var translatedComponent = JSONComponentSerializer.json().deserialize(json);
 
-        sender.sendMessage(
-                Component
-                        .text()
-                        .append(
-                                Component
-                                        .text()
-                                        .content("[" + originalLanguage + " -> " + translatedLanguage + "] ")
-                                        .color(NamedTextColor.GRAY)
-                        )
-
-                        .append(
-                                translatedComponent
-                        )
-                        .append(
-                                Component
-                                        .text()
-                                        .content(" (" + original + ")")
-                                        .decorate(TextDecoration.ITALIC)
-                                        .color(NamedTextColor.GRAY)
-                        )
-                        .build()
-        );
+        return Component
+                .text()
+                .append(
+                        Component
+                                .text()
+                                .content("[" + originalLanguage + " -> " + translatedLanguage + "] ")
+                                .color(NamedTextColor.GRAY)
+                )
+
+                .append(
+                        translatedComponent
+                )
+                .append(
+                        Component
+                                .text()
+                                .content(" (" + original + ")")
+                                .decorate(TextDecoration.ITALIC)
+                                .color(NamedTextColor.GRAY)
+                )
+                .build();
     }
 }
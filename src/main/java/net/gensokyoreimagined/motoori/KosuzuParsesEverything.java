@@ -15,7 +15,10 @@
 
 package net.gensokyoreimagined.motoori;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
 import net.kyori.adventure.text.TextReplacementConfig;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
@@ -24,41 +27,167 @@ import org.intellij.lang.annotations.RegExp;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 public class KosuzuParsesEverything {
-    private final ArrayList<Pattern> regexes = new ArrayList<>();
-    private final Map<String, Map<UUID, Pattern>> placeholderRegexes = new HashMap<>();
+    private static final String USERNAME_PLACEHOLDER = "%username%";
 
-    private final List<TextReplacementConfig> syntaxReplacementConfigs;
+    /**
+     * The default match.include patterns
+     */
+    static final List<String> DEFAULT_PATTERNS = List.of(
+        "^<[^>]+> (.*)", // Vanilla
+        "^[^\\[][^»]+» (.*)", // Discord
+        "^(?::build:|:dev_server:).+?: (.*)" // Chatty
+    );
+
+    /**
+     * One match.include pattern, with the positions of its groups both on its own and within the combined pattern
+     * @param pattern The pattern on its own, used when the combined pattern can't be
+     * @param messageGroup The group holding the message, on its own
+     * @param usernameGroup The group holding the username, on its own, or -1 if it has no %username%
+     * @param offset Where the pattern's groups start within the combined pattern
+     * @param template The pattern as configured, with %username% still in it, or null if it has none
+     */
+    private record IncludePattern(Pattern pattern, int messageGroup, int usernameGroup, int offset, @Nullable String template) {}
+
+    private final List<IncludePattern> includePatterns = new ArrayList<>();
+
+    /**
+     * A %username% pattern with a player's name in place of the placeholder, by pattern and name.
+     * The captured name is only a guess: after a greedy prefix like [^»]+ it can be the wrong token, or the end of
+     * the name. So when it isn't the sender's name, the line is matched again with the name itself, as a literal.
+     */
+    private record NamedPattern(IncludePattern include, String name) {}
+
+    private final Cache<NamedPattern, Pattern> namedPatterns = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Every match.include pattern as one alternation, each alternative wrapped in a named group,
+     * so a chat line is matched once rather than once per pattern. Null if it can't be combined.
+     */
+    private final @Nullable Pattern combinedPattern;
+
+    private final KosuzuFiltersEverything syntaxFilter;
 
     public KosuzuParsesEverything(Kosuzu kosuzu) {
-        var logger = kosuzu.getLogger();
+        this(kosuzu.getLogger(), kosuzu.config.getStringList("match.include"), kosuzu.config.getStringList("match.blacklist"));
+    }
+
+    /**
+     * @param regexes Patterns matching a whole chat line, with the message itself as the first group
+     * @param syntaxBlacklist Literal text removed from messages before they're stored or translated
+     */
+    public KosuzuParsesEverything(Logger logger, List<String> regexes, List<String> syntaxBlacklist) {
+        // Patterns without %username% are tried first, then the rest, each in config order
+        var ordered = new ArrayList<>(regexes);
+        ordered.sort(Comparator.comparing(regex -> regex.contains(USERNAME_PLACEHOLDER)));
+
+        var alternatives = new ArrayList<String>();
+        var combinable = true;
+        var offset = 1;
+
+        for (int i = 0; i < ordered.size(); i++) {
+            var regex = ordered.get(i);
+            var template = regex.contains(USERNAME_PLACEHOLDER) ? regex : null;
+            var messageGroup = 1;
+            var usernameGroup = -1;
 
-        var config = kosuzu.config;
-        var regexes = config.getStringList("match.include");
+            // Capture the username instead of compiling a pattern per player, and check it after matching
+            var placeholder = regex.indexOf(USERNAME_PLACEHOLDER);
+            if (placeholder != -1) {
+                var groupsBefore = countGroups(regex, placeholder);
+                usernameGroup = groupsBefore + 1;
+                messageGroup = groupsBefore >= 1 ? 1 : 2;
 
-        for (var regex : regexes) {
-            if (regex.contains("%username%")) {
-                placeholderRegexes.put(regex, new HashMap<>());
-            } else {
-                this.regexes.add(Pattern.compile(regex));
+                var name = "kosuzuUser" + i;
+                regex = regex.substring(0, placeholder)
+                        + "(?<" + name + ">\\S+?)"
+                        + regex.substring(placeholder + USERNAME_PLACEHOLDER.length()).replace(USERNAME_PLACEHOLDER, "\\k<" + name + ">");
             }
+
+            var pattern = Pattern.compile(regex);
+            includePatterns.add(new IncludePattern(pattern, messageGroup, usernameGroup, offset, template));
+
+            // Numbered backreferences would point at the wrong group once patterns are combined
+            combinable &= !hasNumberedBackreference(regex);
+            alternatives.add("(?<kosuzu" + i + ">" + regex + ")");
+            offset += pattern.matcher("").groupCount() + 1;
         }
 
-        logger.info("Prepared " + this.regexes.size() + " regexes");
+        combinedPattern = combinable && !alternatives.isEmpty() ? Pattern.compile(String.join("|", alternatives)) : null;
+
+        logger.info("Prepared " + includePatterns.size() + " regexes");
+
+        // One automaton for the whole blacklist, instead of rebuilding the message once per entry
+        syntaxFilter = new KosuzuFiltersEverything(syntaxBlacklist);
+
+        logger.info("Added " + syntaxBlacklist.size() + " blacklist entries");
+    }
 
-        List<String> syntaxBlacklist = config.getStringList("match.blacklist");
+    /**
+     * Counts the capturing groups opened before a position in a regex
+     */
+    private static int countGroups(String regex, int end) {
+        var groups = 0;
+        var classDepth = 0;
+        var quoted = false;
 
-        var replacementConfigs = new ArrayList<TextReplacementConfig>();
+        for (int i = 0; i < end; i++) {
+            var character = regex.charAt(i);
 
-        for (var syntax : syntaxBlacklist) {
-            replacementConfigs.add(TextReplacementConfig.builder().matchLiteral(syntax).replacement("").build());
+            if (quoted) {
+                if (regex.startsWith("\\E", i)) {
+                    quoted = false;
+                    i++;
+                }
+            } else if (character == '\\') {
+                if (regex.startsWith("\\Q", i)) quoted = true;
+                i++;
+            } else if (character == '[') {
+                classDepth++;
+            } else if (character == ']' && classDepth > 0) {
+                classDepth--;
+            } else if (character == '(' && classDepth == 0) {
+                // Plain groups and named groups capture; lookarounds, flags and (?:...) don't
+                var isNamed = regex.startsWith("(?<", i) && !regex.startsWith("(?<=", i) && !regex.startsWith("(?<!", i);
+                if (!regex.startsWith("(?", i) || isNamed) groups++;
+            }
         }
 
-        syntaxReplacementConfigs = Collections.unmodifiableList(replacementConfigs);
+        return groups;
+    }
 
-        logger.info("Added " + syntaxBlacklist.size() + " blacklist entries");
+    private static boolean hasNumberedBackreference(String regex) {
+        var classDepth = 0;
+        var quoted = false;
+
+        for (int i = 0; i < regex.length() - 1; i++) {
+            var character = regex.charAt(i);
+
+            if (quoted) {
+                if (regex.startsWith("\\E", i)) {
+                    quoted = false;
+                    i++;
+                }
+            } else if (character == '\\') {
+                var next = regex.charAt(i + 1);
+                if (next == 'Q') quoted = true;
+                else if (classDepth == 0 && next >= '1' && next <= '9') return true;
+                i++;
+            } else if (character == '[') {
+                classDepth++;
+            } else if (character == ']' && classDepth > 0) {
+                classDepth--;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -69,30 +198,74 @@ public class KosuzuParsesEverything {
      * @return The text message, or null if it could/should not be translated
      */
     public @Nullable String getTextMessage(Component component, Player player) {
+        return getTextMessage(component, player.getName());
+    }
+
+    /**
+     * Extracts the text message from a chat component
+     * @param component The chat component created from the message
+     * @param name The name of the player who sent the message, matched against %username%
+     * @return The text message, or null if it could/should not be translated
+     */
+    public @Nullable String getTextMessage(Component component, String name) {
         var text =  PlainTextComponentSerializer.plainText().serialize(component);
 
-        for (var pattern : regexes) {
-            var matcher = pattern.matcher(text);
-            if (matcher.matches()) {
-                return matcher.group(1);
+        if (combinedPattern == null) {
+            return matchEach(text, name, 0);
+        }
+
+        var matcher = combinedPattern.matcher(text);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        for (int i = 0; i < includePatterns.size(); i++) {
+            var include = includePatterns.get(i);
+            if (matcher.start(include.offset()) == -1) continue;
+
+            if (include.usernameGroup() == -1 || name.equals(matcher.group(include.offset() + include.usernameGroup()))) {
+                return matcher.group(include.offset() + include.messageGroup());
             }
+
+            // Someone else's name, or the wrong split of the line; later patterns might still match
+            var named = matchNamed(include, text, name);
+            return named != null ? named : matchEach(text, name, i + 1);
         }
 
-        for (var placeholder : placeholderRegexes.entrySet()) {
-            var regex = placeholder.getKey();
-            var cache = placeholder.getValue();
+        return null;
+    }
+
+    private @Nullable String matchEach(String text, String name, int from) {
+        for (var include : includePatterns.subList(from, includePatterns.size())) {
+            var matcher = include.pattern().matcher(text);
+
+            if (!matcher.matches()) continue;
 
-            var pattern = cache.computeIfAbsent(player.getUniqueId(), (key) -> Pattern.compile(regex.replace("%username%", player.getName())));
-            var matcher = pattern.matcher(text);
+            if (include.usernameGroup() == -1 || name.equals(matcher.group(include.usernameGroup()))) {
+                return matcher.group(include.messageGroup());
+            }
 
-            if (matcher.matches()) {
-                return matcher.group(1);
+            var named = matchNamed(include, text, name);
+            if (named != null) {
+                return named;
             }
         }
 
         return null;
     }
 
+    /**
+     * Matches a %username% pattern with the sender's name written into it
+     * @return The message, or null if the line doesn't match with that name
+     */
+    private @Nullable String matchNamed(IncludePattern include, String text, String name) {
+        var template = Objects.requireNonNull(include.template());
+        var pattern = namedPatterns.asMap().computeIfAbsent(new NamedPattern(include, name), key -> Pattern.compile(template.replace(USERNAME_PLACEHOLDER, Pattern.quote(name))));
+
+        var matcher = pattern.matcher(text);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
     /**
      * Removes unwanted chat syntax from the message, in case someone's trying to be a neerdowell.
      * Examples of syntax include chat prefixes and role prefixes.
@@ -100,22 +273,57 @@ public class KosuzuParsesEverything {
      * @return The same message after modification
      */
     public Component removeUnwantedSyntax(Component message) {
-        for (var replacementConfig : syntaxReplacementConfigs) {
-            message = message.replaceText(replacementConfig);
+        return syntaxFilter.strip(message);
+    }
+
+    /**
+     * Scheme, host, optional port and path. Every quantifier is possessive and none are nested,
+     * so matching takes time linear in the length of the message, whatever it contains.
+     */
+    @RegExp
+    private static final String URL_REGEX = "\\bhttps?://[0-9a-zA-Z][-.\\w]*+(?::\\d++)?+(?:/[^\\s<>\"]*+)?+";
+    private static final Pattern URL_PATTERN = Pattern.compile(URL_REGEX);
+
+    /**
+     * Punctuation that ends a sentence rather than a link, e.g. "see https://example.com."
+     */
+    private static final String TRAILING_PUNCTUATION = ".,;:!?'\")]}";
+
+    private static final TextReplacementConfig URL_REPLACEMENT = TextReplacementConfig.builder().match(URL_PATTERN).replacement(match -> {
+        var url = match.content();
+        var end = url.length();
+
+        while (end > 0 && TRAILING_PUNCTUATION.indexOf(url.charAt(end - 1)) != -1) {
+            end--;
         }
 
-        return message;
-    }
+        var link = Component.text(url.substring(0, end)).clickEvent(ClickEvent.openUrl(url.substring(0, end)));
 
-    private final String URL_REGEX = "\\bhttps?://[0-9a-zA-Z](?:[-.\\w]*[0-9a-zA-Z])*(?::(0-9)*)*(/?)(?:[a-zA-Z0-9\\-.?,'/\\\\+&amp;%$#_]*)?\\b";
-    private final Pattern URL_PATTERN = Pattern.compile(URL_REGEX);
+        // The punctuation stays in the message, just not in the link
+        return end == url.length() ? link : Component.textOfChildren(link, Component.text(url.substring(end)));
+    }).build();
 
     public Component makeLinksClickable(Component message) {
-        final var urlReplacement = TextReplacementConfig.builder().match(URL_PATTERN).replacement((match) -> {
-            var url = match.content();
-            return Component.text(url).clickEvent(ClickEvent.openUrl(url));
-        }).build();
+        // Almost no chat message has a link, and this costs nothing next to a regex pass over the whole component
+        if (!mayContainLink(message)) {
+            return message;
+        }
+
+        return message.replaceText(URL_REPLACEMENT);
+    }
+
+    private static boolean mayContainLink(Component component) {
+        if (component instanceof TextComponent text && text.content().contains("http")) {
+            return true;
+        }
+
+        var children = component.children();
+        for (int i = 0; i < children.size(); i++) {
+            if (mayContainLink(children.get(i))) {
+                return true;
+            }
+        }
 
-        return message.replaceText(urlReplacement);
+        return false;
     }
 }
@@ -0,0 +1,271 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Offline language identification, so messages already in the reader's language never have to go to DeepL.
+ * Languages with their own script (Greek, Korean, Japanese, Chinese) are recognized by script alone;
+ * the rest are scored against character trigram profiles built from profiles.yml and every language's strings in translations.yml.
+ * Only confident guesses are returned; anything else is left for DeepL to detect.
+ */
+public class KosuzuRecognizesEverything {
+    /**
+     * Fewer letters than this and trigram scores are mostly noise
+     */
+    private static final int MIN_LETTERS = 12;
+    /**
+     * How much better (in average log-probability per trigram) the best language must be than the runner-up
+     */
+    private static final double MIN_MARGIN = 0.15;
+    private static final double SMOOTHING = 0.5;
+    private static final Character.UnicodeScript[] SCRIPTS = Character.UnicodeScript.values();
+
+    /**
+     * Base language codes, as DeepL reports detected source languages (e.g. "EN" rather than "EN-US")
+     */
+    private final String[] languages;
+    private final Character.UnicodeScript[] scripts;
+    private final boolean hasJapanese;
+
+    // Sorted trigram keys, and for each key one log-probability per language
+    private final long[] trigrams;
+    private final float[] logProbabilities;
+    private final float[] unseenLogProbabilities;
+
+    /**
+     * @param resources Opens a file bundled with the plugin, or returns null if there's no such file
+     */
+    public KosuzuRecognizesEverything(@NotNull Function<String, @Nullable InputStream> resources, @NotNull ConfigurationSection translations) {
+        // Group every translated string by base language
+        this(collectSamples(translations, collectSamples(loadProfiles(resources), new HashMap<>())));
+    }
+
+    private static @NotNull YamlConfiguration loadProfiles(@NotNull Function<String, @Nullable InputStream> resources) {
+        var profileFile = resources.apply("profiles.yml");
+        if (profileFile == null) {
+            throw new KosuzuException("Failed to find profiles.yml! Is the plugin jar corrupted?");
+        }
+
+        try (var reader = new InputStreamReader(profileFile, StandardCharsets.UTF_8)) {
+            return YamlConfiguration.loadConfiguration(reader);
+        } catch (IOException ex) {
+            throw new KosuzuException("Failed to load profiles.yml! Is the plugin jar corrupted?", ex);
+        }
+    }
+
+    /**
+     * @param samples Text written in each language, keyed by base language code
+     */
+    KosuzuRecognizesEverything(@NotNull Map<String, ? extends CharSequence> samples) {
+        languages = samples.keySet().stream().sorted().toArray(String[]::new);
+        scripts = new Character.UnicodeScript[languages.length];
+        hasJapanese = samples.containsKey("JA");
+
+        var counts = new HashMap<Long, int[]>();
+        var totals = new int[languages.length];
+
+        for (int language = 0; language < languages.length; language++) {
+            var sample = samples.get(languages[language]);
+            scripts[language] = dominantScript(sample);
+
+            final int index = language;
+            forEachTrigram(sample, trigram -> {
+                counts.computeIfAbsent(trigram, key -> new int[languages.length])[index]++;
+                totals[index]++;
+            });
+        }
+
+        trigrams = counts.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        logProbabilities = new float[trigrams.length * languages.length];
+        unseenLogProbabilities = new float[languages.length];
+
+        var vocabulary = trigrams.length;
+        for (int language = 0; language < languages.length; language++) {
+            unseenLogProbabilities[language] = (float) Math.log(SMOOTHING / (totals[language] + SMOOTHING * vocabulary));
+        }
+
+        for (int i = 0; i < trigrams.length; i++) {
+            var count = counts.get(trigrams[i]);
+
+            for (int language = 0; language < languages.length; language++) {
+                logProbabilities[i * languages.length + language] = (float) Math.log((count[language] + SMOOTHING) / (totals[language] + SMOOTHING * vocabulary));
+            }
+        }
+    }
+
+    private static Map<String, StringBuilder> collectSamples(@NotNull ConfigurationSection section, @NotNull Map<String, StringBuilder> samples) {
+        for (var key : section.getKeys(false)) {
+            // English names of languages are keyed by language, but aren't written in it
+            if (section.getCurrentPath() != null && section.getCurrentPath().equals("language") && key.equals("english")) {
+                continue;
+            }
+
+            if (section.isConfigurationSection(key)) {
+                collectSamples(section.getConfigurationSection(key), samples);
+            } else if (section.isString(key)) {
+                samples.computeIfAbsent(baseLanguage(key), language -> new StringBuilder()).append(section.getString(key)).append(' ');
+            }
+        }
+
+        return samples;
+    }
+
+    private static String baseLanguage(String code) {
+        var dash = code.indexOf('-');
+        return (dash == -1 ? code : code.substring(0, dash)).toUpperCase();
+    }
+
+    private static Character.UnicodeScript dominantScript(CharSequence text) {
+        var counts = new HashMap<Character.UnicodeScript, Integer>();
+
+        text.codePoints().filter(Character::isLetter).forEach(codePoint -> counts.merge(Character.UnicodeScript.of(codePoint), 1, Integer::sum));
+
+        return counts.entrySet().stream().max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(Character.UnicodeScript.UNKNOWN);
+    }
+
+    @FunctionalInterface
+    private interface TrigramConsumer {
+        void accept(long trigram);
+    }
+
+    /**
+     * Walks the trigrams of the text, lowercased, with anything that isn't a letter treated as a single space
+     */
+    private static void forEachTrigram(CharSequence text, TrigramConsumer consumer) {
+        char first = ' ', second = ' ';
+
+        for (int i = 0; i <= text.length(); i++) {
+            var current = i == text.length() ? ' ' : text.charAt(i);
+            current = Character.isLetter(current) ? Character.toLowerCase(current) : ' ';
+
+            if (current == ' ' && second == ' ') {
+                continue;
+            }
+
+            if (first != ' ' || second != ' ') {
+                consumer.accept(((long) first << 32) | ((long) second << 16) | current);
+            }
+
+            first = second;
+            second = current;
+        }
+    }
+
+    /**
+     * Guesses the language of a text
+     * @param text The plain text of a message
+     * @return The base language code (e.g. "EN", "PT", "ZH"), or null if the language can't be determined confidently
+     */
+    public @Nullable String detect(@NotNull String text) {
+        int letters = 0, kana = 0;
+        var scriptCounts = new int[SCRIPTS.length];
+
+        for (int i = 0; i < text.length(); i++) {
+            var letter = text.charAt(i);
+            if (!Character.isLetter(letter)) continue;
+
+            var script = Character.UnicodeScript.of(letter);
+            scriptCounts[script.ordinal()]++;
+            letters++;
+
+            if (script == Character.UnicodeScript.HIRAGANA || script == Character.UnicodeScript.KATAKANA) {
+                kana++;
+            }
+        }
+
+        if (letters == 0) {
+            return null;
+        }
+
+        // Kanji alone could be either, but kana only appears in Japanese
+        if (kana > 0 && hasJapanese) {
+            return "JA";
+        }
+
+        var script = Character.UnicodeScript.UNKNOWN;
+        for (int i = 0; i < scriptCounts.length; i++) {
+            if (scriptCounts[i] > scriptCounts[script.ordinal()]) {
+                script = SCRIPTS[i];
+            }
+        }
+
+        int candidates = 0, candidate = -1;
+        for (int language = 0; language < languages.length; language++) {
+            if (scripts[language] == script) {
+                candidates++;
+                candidate = language;
+            }
+        }
+
+        if (candidates == 0) {
+            return null;
+        }
+
+        if (candidates == 1) {
+            return languages[candidate];
+        }
+
+        if (letters < MIN_LETTERS) {
+            return null;
+        }
+
+        return bestCandidate(text, script);
+    }
+
+    private @Nullable String bestCandidate(String text, Character.UnicodeScript script) {
+        var scores = new double[languages.length];
+        var trigramCount = new int[1];
+
+        forEachTrigram(text, trigram -> {
+            var index = Arrays.binarySearch(trigrams, trigram);
+            trigramCount[0]++;
+
+            for (int language = 0; language < languages.length; language++) {
+                if (scripts[language] != script) continue;
+                scores[language] += index < 0 ? unseenLogProbabilities[language] : logProbabilities[index * languages.length + language];
+            }
+        });
+
+        int best = -1, runnerUp = -1;
+        for (int language = 0; language < languages.length; language++) {
+            if (scripts[language] != script) continue;
+
+            if (best == -1 || scores[language] > scores[best]) {
+                runnerUp = best;
+                best = language;
+            } else if (runnerUp == -1 || scores[language] > scores[runnerUp]) {
+                runnerUp = language;
+            }
+        }
+
+        var margin = (scores[best] - scores[runnerUp]) / trigramCount[0];
+        return margin >= MIN_MARGIN ? languages[best] : null;
+    }
+}
@@ -0,0 +1,255 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.common.hash.HashCode;
+import net.gensokyoreimagined.motoori.KosuzuDatabaseModels.PendingMessage;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue for chat messages: instead of one connection and five statements per message,
+ * messages are written in batches, in a single transaction, on a fixed interval or once enough have piled up.
+ * The queue is bounded, so a chat flood costs translations of some messages rather than the server's heap.
+ */
+public class KosuzuRecordsEverything implements Closeable {
+    /**
+     * What to do with a message when the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued message to make room
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the incoming message
+         */
+        DROP_NEWEST,
+        /**
+         * Messages identical to a queued message share its entry (even when there is room);
+         * other messages are dropped while the queue is full
+         */
+        COALESCE
+    }
+
+    private final Logger logger;
+    private final KosuzuRemembersEverything database;
+    private final ScheduledExecutorService flusher;
+    private final int batchSize;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    // Both guarded by queue
+    private final ArrayDeque<PendingMessage> queue = new ArrayDeque<>();
+    private final HashMap<HashCode, PendingMessage> queuedByHash = new HashMap<>();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public KosuzuRecordsEverything(@NotNull KosuzuRemembersEverything database, @NotNull FileConfiguration config, @NotNull Logger logger) {
+        this.database = database;
+        this.logger = logger;
+
+        batchSize = Math.max(1, config.getInt("ingestion.batch_size", 200));
+        capacity = Math.max(batchSize, config.getInt("ingestion.queue_capacity", 10000));
+        var interval = Math.max(10, config.getLong("ingestion.flush_interval_ms", 250));
+
+        var policyName = config.getString("ingestion.overflow_policy", "drop_oldest");
+        OverflowPolicy configuredPolicy;
+
+        try {
+            configuredPolicy = OverflowPolicy.valueOf(policyName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning("Unknown ingestion overflow policy " + policyName + ", using drop_oldest");
+            configuredPolicy = OverflowPolicy.DROP_OLDEST;
+        }
+
+        policy = configuredPolicy;
+
+        // A single thread means batches never compete with each other for the database
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Kosuzu Message Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a message to be written to the database with the next batch
+     * @param hash The fingerprint of the Minecraft message
+     * @param json The JSON Minecraft message
+     * @param text The plain text of the message
+     * @return The lookup UUID the message will be written with, or null if it was dropped because the queue is full
+     */
+    public @Nullable UUID enqueue(@NotNull HashCode hash, @NotNull String json, @NotNull String text) {
+        PendingMessage message;
+        PendingMessage evicted = null;
+        boolean full;
+
+        synchronized (queue) {
+            if (policy == OverflowPolicy.COALESCE) {
+                var existing = queuedByHash.get(hash);
+
+                if (existing != null) {
+                    coalesced.incrementAndGet();
+                    return existing.lookup();
+                }
+            }
+
+            message = new PendingMessage(UUID.randomUUID(), hash, json, text);
+
+            if (queue.size() >= capacity) {
+                dropped.incrementAndGet();
+
+                if (policy != OverflowPolicy.DROP_OLDEST) {
+                    return null;
+                }
+
+                evicted = queue.poll();
+            }
+
+            queue.add(message);
+
+            if (policy == OverflowPolicy.COALESCE) {
+                queuedByHash.put(hash, message);
+            }
+
+            full = queue.size() >= batchSize;
+        }
+
+        // Repeats of it would otherwise be handed its lookup UUID, which will never resolve
+        if (evicted != null) {
+            database.forgetMessage(evicted);
+        }
+
+        // Don't wait for the next interval if a full batch is already waiting
+        if (full && !flusher.isShutdown() && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flush);
+        }
+
+        return message.lookup();
+    }
+
+    /**
+     * @return The number of messages waiting to be written
+     */
+    public int getDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The number of messages dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of messages that shared an identical queued message's entry
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private @NotNull List<PendingMessage> drain() {
+        var batch = new ArrayList<PendingMessage>();
+
+        synchronized (queue) {
+            PendingMessage message;
+            while (batch.size() < batchSize && (message = queue.poll()) != null) {
+                batch.add(message);
+                queuedByHash.remove(message.hash(), message);
+            }
+        }
+
+        return batch;
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+
+        List<PendingMessage> batch;
+        while (!(batch = drain()).isEmpty()) {
+            try {
+                database.addMessagesSQL(batch);
+            } catch (Exception e) {
+                // Don't let one bad batch kill the scheduled task, or one bad message lose the whole batch
+                logger.warning("Failed to write " + batch.size() + " messages at once, writing them one at a time");
+                logger.warning(e.getMessage());
+                writeEach(batch);
+            }
+        }
+    }
+
+    private void writeEach(@NotNull List<PendingMessage> batch) {
+        for (var message : batch) {
+            try {
+                database.addMessagesSQL(List.of(message));
+            } catch (Exception e) {
+                logger.severe("Failed to write message " + message.lookup() + "!");
+                logger.severe(e.getMessage());
+
+                // Its lookup UUID will never resolve, so repeats shouldn't be handed it
+                database.forgetMessage(message);
+            }
+        }
+    }
+
+    /**
+     * Stops the writer, writing anything still queued first
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+
+        try {
+            if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for the message writer!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+    }
+}
@@ -15,9 +15,14 @@
 
 package net.gensokyoreimagined.motoori;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.serializer.json.JSONComponentSerializer;
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -28,6 +33,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -35,26 +41,65 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import static net.gensokyoreimagined.motoori.KosuzuDatabaseModels.*;
 
 public class KosuzuRemembersEverything implements Closeable {
-    private final Kosuzu kosuzu;
     private final YamlConfiguration translations;
     private final BasicDataSource dataSource = new BasicDataSource();
     private final FileConfiguration config;
     private final Logger logger;
+    private final Path folder;
+    private final Function<String, @Nullable InputStream> resources;
+
+    /**
+     * JDBC blocks, so queries run on virtual threads instead of tying up the shared Bukkit scheduler
+     */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * SQLite only allows one writer at a time, so rather than have every caller fight over the file lock
+     * (and fail with SQLITE_BUSY), writes go through this one thread and its one connection; reads still use the pool.
+     * Null for MySQL, where writes just use a pooled connection.
+     */
+    private @Nullable ExecutorService writer;
+    private volatile @Nullable Thread writerThread;
+    // Only touched on the writer thread
+    private @Nullable Connection writerConnection;
+
+    private final KosuzuRecordsEverything recorder;
+    private final KosuzuTidiesEverything retention;
+    private final KosuzuRecognizesEverything recognizer;
 
     private boolean isSqlite = false;
 
     public KosuzuRemembersEverything(Kosuzu kosuzu) {
-        this.kosuzu = kosuzu;
-        config = kosuzu.config;
-        logger = kosuzu.getLogger();
+        this(kosuzu.config, kosuzu.getLogger(), Path.of("plugins/Kosuzu"), kosuzu::getResource, kosuzu::saveConfig);
+    }
 
-        var translationFile = kosuzu.getResource("translations.yml");
+    /**
+     * @param folder Where the SQLite database goes
+     * @param resources Opens a file bundled with the plugin, or returns null if there's no such file
+     * @param saveConfig Saves the config, once migrations have updated the version in it
+     */
+    KosuzuRemembersEverything(@NotNull FileConfiguration config, @NotNull Logger logger, @NotNull Path folder,
+                              @NotNull Function<String, @Nullable InputStream> resources, @NotNull Runnable saveConfig) {
+        this.config = config;
+        this.logger = logger;
+        this.folder = folder;
+        this.resources = resources;
+
+        var translationFile = resources.apply("translations.yml");
         if (translationFile == null) {
             throw new KosuzuException("Failed to find translations.yml! Is the plugin jar corrupted?");
         }
@@ -65,6 +110,8 @@ public class KosuzuRemembersEverything implements Closeable {
             throw new KosuzuException("Failed to load translations.yml! Is the plugin jar corrupted?", ex);
         }
 
+        recognizer = new KosuzuRecognizesEverything(resources, translations);
+
         var type = config.getString("storage.type", "sqlite");
 
         switch (type) {
@@ -79,7 +126,20 @@ public class KosuzuRemembersEverything implements Closeable {
                 throw new KosuzuException("Kosuzu can't remember how to use storage type: " + type);
         }
 
-        initializeDatabase(kosuzu);
+        initializeDatabase(saveConfig);
+
+        users = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, config.getLong("cache.max_users", 1000)))
+                .build(new CacheLoader<>() {
+                    @Override
+                    public @NotNull User load(@NotNull UUID key) throws SQLException {
+                        // Thrown rather than caught, so a failed load isn't cached for the rest of the session
+                        return getUserSQL(key);
+                    }
+                });
+
+        recorder = new KosuzuRecordsEverything(this, config, logger);
+        retention = new KosuzuTidiesEverything(this, config, logger);
     }
 
     public String getTranslation(@NotNull String key, @Nullable String lang) {
@@ -95,19 +155,107 @@ public class KosuzuRemembersEverything implements Closeable {
         return dataSource.getConnection();
     }
 
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Runs a database call on the database executor
+     * @param query The call to make
+     * @return A future of the call's result
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> query) {
+        return CompletableFuture.supplyAsync(query, executor);
+    }
+
+    /**
+     * Runs a database call on the database executor
+     * @param query The call to make
+     * @return A future that completes once the call is done
+     */
+    public CompletableFuture<Void> runAsync(Runnable query) {
+        return CompletableFuture.runAsync(query, executor);
+    }
+
+    /**
+     * A database write, given the connection to write with
+     */
+    @FunctionalInterface
+    interface Write<T> {
+        T run(@NotNull Connection connection) throws SQLException;
+    }
+
+    /**
+     * Runs a write on the SQLite writer thread (waiting for it), or on a pooled connection for MySQL
+     * @param write The write to make
+     * @return What the write returned
+     */
+    <T> T write(@NotNull Write<T> write) throws SQLException {
+        if (writer == null) {
+            try (var connection = getConnection()) {
+                return write.run(connection);
+            }
+        }
+
+        if (Thread.currentThread() == writerThread) {
+            return writeOnWriter(write);
+        }
+
+        try {
+            return writer.submit(() -> writeOnWriter(write)).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException cause) {
+                throw cause;
+            }
+
+            throw new KosuzuException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database writer!", e);
+        }
+    }
+
+    private <T> T writeOnWriter(@NotNull Write<T> write) throws SQLException {
+        if (writerConnection == null || writerConnection.isClosed()) {
+            writerConnection = getConnection();
+        }
+
+        return write.run(writerConnection);
+    }
+
     private void initializeSqlite() {
         var path = config.getString("storage.sqlite.file", "kosuzu.db");
 
-        if (!Files.exists(Path.of("plugins/Kosuzu/" + path))) {
+        if (!Files.exists(folder.resolve(path))) {
             // Force re-migration if the database file was deleted
             config.set("DO-NOT-EDIT-VERSION-UNLESS-YOU-KNOW-WHAT-YOU-ARE-DOING", 0);
         }
 
+        var mmapSize = Math.max(0, config.getLong("storage.sqlite.mmap_size", 268435456));
+        var cacheSize = Math.max(0, config.getLong("storage.sqlite.cache_size_kb", 16384));
+
         try {
-            dataSource.setUrl("jdbc:sqlite:plugins/Kosuzu/" + path);
+            dataSource.setUrl("jdbc:sqlite:" + folder.resolve(path));
+            // WAL lets readers carry on while the writer writes, and with it synchronous=NORMAL only syncs at checkpoints
+            // (a power cut can lose the last few messages, but can't corrupt the database)
+            dataSource.setConnectionInitSqls(List.of(
+                    "PRAGMA journal_mode = WAL",
+                    "PRAGMA synchronous = NORMAL",
+                    "PRAGMA busy_timeout = 5000",
+                    "PRAGMA mmap_size = " + mmapSize,
+                    "PRAGMA cache_size = -" + cacheSize // Negative means KiB rather than pages
+            ));
             dataSource.setMinIdle(5);
             dataSource.setMaxIdle(10);
+            dataSource.setPoolPreparedStatements(true);
             dataSource.setMaxOpenPreparedStatements(50);
+
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "Kosuzu Database Writer");
+                thread.setDaemon(true);
+                writerThread = thread;
+                return thread;
+            });
         } catch (Exception e) {
             logger.severe("Failed to setup SQLite database! Writing to: " + path);
             throw new KosuzuException(e);
@@ -141,6 +289,7 @@ public class KosuzuRemembersEverything implements Closeable {
             dataSource.setPassword(password);
             dataSource.setMinIdle(5);
             dataSource.setMaxIdle(20);
+            dataSource.setPoolPreparedStatements(true);
             dataSource.setMaxOpenPreparedStatements(100);
         } catch (Exception e) {
             logger.severe("Failed to connect to MySQL database! Connecting to: " + host + ":" + port + "/" + database);
@@ -148,13 +297,13 @@ public class KosuzuRemembersEverything implements Closeable {
         }
     }
 
-    private void initializeDatabase(Kosuzu kosuzu) {
+    private void initializeDatabase(Runnable saveConfig) {
         var migrationIndex = config.getInt("DO-NOT-EDIT-VERSION-UNLESS-YOU-KNOW-WHAT-YOU-ARE-DOING", 0);
         var extension = "." + config.getString("storage.type", "sqlite") + ".sql";
 
         // Iterate through all available migration files starting from last read in config
         while (true) {
-            var update = kosuzu.getResource("migration" + migrationIndex + extension);
+            var update = resources.apply("migration" + migrationIndex + extension);
             if (update == null) {
                 break;
             }
@@ -166,7 +315,7 @@ public class KosuzuRemembersEverything implements Closeable {
         }
 
         config.set("DO-NOT-EDIT-VERSION-UNLESS-YOU-KNOW-WHAT-YOU-ARE-DOING", migrationIndex);
-        kosuzu.saveConfig();
+        saveConfig.run();
 
         loadLanguages();
     }
@@ -236,104 +385,161 @@ public class KosuzuRemembersEverything implements Closeable {
                 .replace("INSERT IGNORE", "INSERT OR IGNORE");
     }
 
-    private final HashMap<UUID, String> userLanguages = new HashMap<>();
+    /**
+     * Read for every viewer of every chat message, so the chat path should never have to wait on JDBC.
+     * Players are loaded when they join and dropped when they leave; the size limit only matters for offline lookups.
+     */
+    private final LoadingCache<UUID, User> users;
 
+    /**
+     * Gets a player's profile, loading it from the database if they aren't online
+     */
     @NotNull
-    public String getUserDefaultLanguage(UUID uuid) {
-        return userLanguages.computeIfAbsent(uuid, this::getUserDefaultLanguageSQL);
+    public User getUser(@NotNull UUID uuid) {
+        try {
+            return users.getUnchecked(uuid);
+        } catch (UncheckedExecutionException e) {
+            logger.severe("Failed to get user!");
+            logger.severe(e.getCause().getMessage());
+
+            // Only for this call; the next one tries the database again
+            return new User(uuid, null, config.getString("default-language", "EN-US"), TranslationMode.OFF, Set.of());
+        }
     }
 
-    @NotNull
-    private String getUserDefaultLanguageSQL(UUID uuid) {
-        try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement("SELECT `default_language` FROM `user` WHERE `uuid` = ?")) {
-                statement.setString(1, uuid.toString());
-                try (var result = statement.executeQuery()) {
-                    if (result.next()) {
-                        return result.getString("default_language");
-                    }
-                }
-            }
+    /**
+     * Reloads a player's profile from the database, e.g. when they join
+     */
+    public void loadUser(@NotNull UUID uuid) {
+        try {
+            users.put(uuid, getUserSQL(uuid));
         } catch (SQLException e) {
-            logger.severe("Failed to get user default language!");
+            logger.severe("Failed to get user!");
             logger.severe(e.getMessage());
+
+            // Don't keep a profile that may be out of date; it's loaded again when next needed
+            users.invalidate(uuid);
         }
+    }
 
-        return config.getString("default-language", "EN-US");
+    /**
+     * Forgets a player's profile, e.g. when they leave
+     */
+    public void evictUser(@NotNull UUID uuid) {
+        users.invalidate(uuid);
     }
 
-    public boolean isNewUser(UUID uuid, String username) {
-        boolean isNew = false;
+    @NotNull
+    public String getUserDefaultLanguage(UUID uuid) {
+        return getUser(uuid).defaultLanguage();
+    }
+
+    @NotNull
+    private User getUserSQL(UUID uuid) throws SQLException {
+        String name = null;
+        var defaultLanguage = config.getString("default-language", "EN-US");
+        var mode = TranslationMode.OFF;
+        var languages = new HashSet<String>();
 
         try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement("SELECT `uuid` FROM `user` WHERE `uuid` = ?")) {
-                statement.setString(1, uuid.toString());
-                var result = statement.executeQuery();
-                isNew = !result.next();
+            try (var statement = connection.prepareStatement("SELECT `last_known_name`, `default_language`, `use_auto` FROM `user` WHERE `uuid` = ?")) {
+                statement.setBytes(1, toBytes(uuid));
+                try (var result = statement.executeQuery()) {
+                    if (result.next()) {
+                        name = result.getString("last_known_name");
+                        defaultLanguage = result.getString("default_language");
+                        mode = TranslationMode.fromValue(result.getInt("use_auto"));
+                    }
+                }
             }
 
-            if (isNew) {
-                try (var statement = connection.prepareStatement("INSERT INTO `user` (`uuid`, `last_known_name`, `default_language`) VALUES (?, ?, ?)")) {
-                    statement.setString(1, uuid.toString());
-                    statement.setString(2, username);
-                    statement.setString(3, config.getString("default-language", "EN-US"));
-                    statement.execute();
+            try (var statement = connection.prepareStatement("SELECT `language` FROM `multilingual` WHERE `uuid` = ?")) {
+                statement.setBytes(1, toBytes(uuid));
+                try (var result = statement.executeQuery()) {
+                    while (result.next()) {
+                        languages.add(result.getString("language"));
+                    }
                 }
             }
-        } catch (SQLException e) {
-            logger.severe("Failed to check if user is new!");
-            logger.severe(e.getMessage());
         }
 
-        return isNew;
+        return new User(uuid, name, defaultLanguage, mode, languages);
     }
 
-    @NotNull
-    public Collection<String> getUserLanguages(String uuid) {
-        try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement("SELECT `language` FROM `multilingual` WHERE `uuid` = ?")) {
-                statement.setString(1, uuid);
-                try (var result = statement.executeQuery()) {
-                    // collect results into a collection
-                    var output = new ArrayList<String>();
+    public boolean isNewUser(UUID uuid, String username) {
+        try {
+            return write(connection -> {
+                boolean isNew;
 
-                    while (result.next()) {
-                        output.add(result.getString("language"));
+                try (var statement = connection.prepareStatement("SELECT `uuid` FROM `user` WHERE `uuid` = ?")) {
+                    statement.setBytes(1, toBytes(uuid));
+                    try (var result = statement.executeQuery()) {
+                        isNew = !result.next();
                     }
+                }
 
-                    return output;
+                if (isNew) {
+                    try (var statement = connection.prepareStatement("INSERT INTO `user` (`uuid`, `last_known_name`, `default_language`) VALUES (?, ?, ?)")) {
+                        statement.setBytes(1, toBytes(uuid));
+                        statement.setString(2, username);
+                        statement.setString(3, config.getString("default-language", "EN-US"));
+                        statement.execute();
+                    }
                 }
-            }
+
+                return isNew;
+            });
         } catch (SQLException e) {
-            logger.severe("Failed to get user languages!");
+            logger.severe("Failed to check if user is new!");
             logger.severe(e.getMessage());
         }
 
-        return List.of(config.getString("default-language", "EN-US"));
+        return false;
+    }
+
+    @NotNull
+    public Collection<String> getUserLanguages(UUID uuid) {
+        return getUser(uuid).languages();
     }
 
     public void setUserDefaultLanguage(@NotNull UUID uuid, @NotNull String lang) {
-        try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement(s("UPDATE `user` SET `default_language` = ? WHERE `uuid` = ?;"))) {
-                statement.setString(1, lang);
-                statement.setString(2, uuid.toString());
-                statement.execute();
-                userLanguages.put(uuid, lang);
-            }
+        try {
+            write(connection -> {
+                try (var statement = connection.prepareStatement(s("UPDATE `user` SET `default_language` = ? WHERE `uuid` = ?;"))) {
+                    statement.setString(1, lang);
+                    statement.setBytes(2, toBytes(uuid));
+                    return statement.execute();
+                }
+            });
+
+            // Write-through, but only for profiles already in memory; offline players load fresh when needed
+            users.asMap().computeIfPresent(uuid, (key, user) -> user.withDefaultLanguage(lang));
         } catch (SQLException e) {
             logger.severe("Failed to set user default language!");
             logger.severe(e.getMessage());
         }
     }
 
+    /**
+     * Gets whether a user wants chat translated automatically; checked for every viewer of every chat message.
+     */
+    @NotNull
+    public TranslationMode getUserAutoTranslate(UUID uuid) {
+        return getUser(uuid).translationMode();
+    }
+
     // Use TranslationMode mode instead of directly using integers
     public void setUserAutoTranslate(@NotNull UUID uuid, TranslationMode mode) {
-        try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement("UPDATE `user` SET `use_auto` = ? WHERE `uuid` = ?;")) {
-                statement.setInt(1, mode.getValue());
-                statement.setString(2, uuid.toString());
-                statement.execute();
-            }
+        try {
+            write(connection -> {
+                try (var statement = connection.prepareStatement("UPDATE `user` SET `use_auto` = ? WHERE `uuid` = ?;")) {
+                    statement.setInt(1, mode.getValue());
+                    statement.setBytes(2, toBytes(uuid));
+                    return statement.execute();
+                }
+            });
+
+            users.asMap().computeIfPresent(uuid, (key, user) -> user.withTranslationMode(mode));
         } catch (SQLException e) {
             logger.severe("Failed to set user auto translate!");
             logger.severe(e.getMessage());
@@ -373,17 +579,72 @@ public class KosuzuRemembersEverything implements Closeable {
         throw new KosuzuException("Failed to get languages!");
     }
 
-    public Translation getTranslation(@NotNull UUID message, @NotNull UUID user) {
+    // Each one reads a single row through a primary key or unique index; with statement pooling
+    // enabled, every pooled connection prepares them once and reuses them from then on
+    static final String SELECT_LOOKUP = "SELECT `user_message_id` FROM `user_message_lookup` WHERE `uuid` = ?";
+    static final String SELECT_USER_MESSAGE = "SELECT `message_id`, `json_msg` FROM `user_message` WHERE `uuid` = ?";
+    static final String SELECT_MESSAGE = "SELECT `text`, `language` FROM `message` WHERE `uuid` = ?";
+    static final String SELECT_MESSAGE_TRANSLATION = "SELECT `text` FROM `message_translation` WHERE `message_id` = ? AND `language` = ?";
+
+    /**
+     * Gets a message and its translation into the user's language, if there is one yet.
+     * The user's language comes from their profile in memory rather than being joined in.
+     * @param message The lookup UUID handed out by {@link #addMessage(Component, String)}
+     * @param user The player who wants the translation
+     * @return The translation, or null if the message isn't in the database (yet)
+     */
+    public @Nullable Translation getTranslation(@NotNull UUID message, @NotNull UUID user) {
+        var language = getUserDefaultLanguage(user);
+
         try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement("SELECT user_message.json_msg, message.uuid AS message_id, message.language, message.text, message_translation.text AS translation, `user`.`default_language` FROM `user_message_lookup` INNER JOIN `user_message` ON user_message.uuid = user_message_lookup.user_message_id LEFT JOIN `message` ON message.uuid = user_message.message_id LEFT JOIN `user` ON `user`.`uuid` = ? LEFT JOIN `message_translation` ON message_translation.message_id = message.uuid AND user.default_language = message_translation.language WHERE `user_message_lookup`.`uuid` = ?;")) {
-                statement.setString(1, user.toString());
-                statement.setString(2, message.toString());
+            var userMessageId = selectBytes(connection, SELECT_LOOKUP, toBytes(message));
+            if (userMessageId == null) {
+                return null;
+            }
+
+            byte[] messageId;
+            String json;
+
+            try (var statement = connection.prepareStatement(SELECT_USER_MESSAGE)) {
+                statement.setBytes(1, userMessageId);
+                try (var result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return null;
+                    }
+
+                    messageId = result.getBytes("message_id");
+                    json = result.getString("json_msg");
+                }
+            }
+
+            String text;
+            String originalLanguage;
+
+            try (var statement = connection.prepareStatement(SELECT_MESSAGE)) {
+                statement.setBytes(1, messageId);
+                try (var result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return null;
+                    }
+
+                    text = result.getString("text");
+                    originalLanguage = result.getString("language");
+                }
+            }
+
+            String translation = null;
+
+            try (var statement = connection.prepareStatement(SELECT_MESSAGE_TRANSLATION)) {
+                statement.setBytes(1, messageId);
+                statement.setString(2, language);
                 try (var result = statement.executeQuery()) {
                     if (result.next()) {
-                        return new Translation(result.getString("json_msg"), UUID.fromString(result.getString("message_id")), result.getString("language"), result.getString("text"), result.getString("translation"), result.getString("default_language"));
+                        translation = result.getString("text");
                     }
                 }
             }
+
+            return new Translation(json, fromBytes(messageId), originalLanguage, text, translation, language);
         } catch (SQLException e) {
             logger.severe("Failed to get message!");
             logger.severe(e.getMessage());
@@ -392,23 +653,36 @@ public class KosuzuRemembersEverything implements Closeable {
         return null;
     }
 
+    private static byte @Nullable [] selectBytes(@NotNull Connection connection, @NotNull String sql, byte @NotNull [] key) throws SQLException {
+        try (var statement = connection.prepareStatement(sql)) {
+            statement.setBytes(1, key);
+            try (var result = statement.executeQuery()) {
+                return result.next() ? result.getBytes(1) : null;
+            }
+        }
+    }
+
     public void addTranslation(@NotNull UUID message, @NotNull String translation, @NotNull String language, @NotNull String originalLanguage) {
-        try (var connection = getConnection()) {
-            try (var statement = connection.prepareStatement("INSERT INTO `message_translation` (`uuid`, `message_id`,`language`, `text`) VALUES (?, ?, ?, ?);")) {
-                statement.setString(1, UUID.randomUUID().toString());
-                statement.setString(2, message.toString());
-                statement.setString(3, language);
-                statement.setString(4, translation);
+        try {
+            write(connection -> {
+                // Another player may have requested the same translation at the same time
+                try (var statement = connection.prepareStatement(s("INSERT IGNORE INTO `message_translation` (`uuid`, `message_id`,`language`, `text`, `created_at`) VALUES (?, ?, ?, ?, ?);"))) {
+                    statement.setBytes(1, toBytes(UUID.randomUUID()));
+                    statement.setBytes(2, toBytes(message));
+                    statement.setString(3, language);
+                    statement.setString(4, translation);
+                    statement.setLong(5, System.currentTimeMillis());
 
-                statement.execute();
-            }
+                    statement.execute();
+                }
 
-            try (var statement = connection.prepareStatement("UPDATE `message` SET `language` = ? WHERE `uuid` = ?;")) {
-                statement.setString(1, originalLanguage);
-                statement.setString(2, message.toString());
+                try (var statement = connection.prepareStatement("UPDATE `message` SET `language` = ? WHERE `uuid` = ?;")) {
+                    statement.setString(1, originalLanguage);
+                    statement.setBytes(2, toBytes(message));
 
-                statement.execute();
-            }
+                    return statement.execute();
+                }
+            });
         } catch (SQLException e) {
             logger.severe("Failed to add translation!");
             logger.severe(e.getMessage());
@@ -416,22 +690,91 @@ public class KosuzuRemembersEverything implements Closeable {
     }
 
     /**
+     * Gets the most recently added translations, used to warm up the in-memory translation cache.
+     * @param limit The max number of translations to fetch
+     * @return The translations, newest first
+     */
+    public @NotNull List<StoredTranslation> getRecentTranslations(int limit) {
+        var output = new ArrayList<StoredTranslation>();
+
+        try (var connection = getConnection()) {
+            try (var statement = connection.prepareStatement("SELECT message.text AS original, message.language AS source, message_translation.language, message_translation.text FROM `message_translation` INNER JOIN `message` ON message.uuid = message_translation.message_id WHERE message.language IS NOT NULL ORDER BY message_translation.created_at DESC LIMIT ?;")) {
+                statement.setInt(1, limit);
+                try (var result = statement.executeQuery()) {
+                    while (result.next()) {
+                        output.add(new StoredTranslation(result.getString("original"), result.getString("source"), result.getString("language"), result.getString("text")));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.severe("Failed to get recent translations!");
+            logger.severe(e.getMessage());
+        }
+
+        return output;
+    }
+
+    /**
+     * Recently sent messages by fingerprint, so repeated messages (e.g. spam, or the same message decorated twice)
+     * reuse the lookup UUID they were given the first time.
      * Explanation: So, we need to capture outgoing messages, because this includes Discord messages and other messages
      * that are not chat messages - this is a lot of messages, and we don't want to send a lot of requests to the database.
-     * This will unfortunately mean this gets called once per message, per player (!) - we don't want to do that.
      */
-    private final LoadingCache<Message, UUID> messageCache = CacheBuilder.newBuilder()
+    private final Cache<HashCode, UUID> messageCache = CacheBuilder.newBuilder()
             .maximumSize(512)
             .expireAfterWrite(1, TimeUnit.MINUTES)
-            .build(
-                    new CacheLoader<>() {
-                        public @NotNull UUID load(@NotNull Message json) {
-                            return addMessageSQLWrapper(json.getJSON(), json.getMessage());
-                        }
-                    });
+            .build();
+
+    /**
+     * The reverse of messageCache, so that a click on a recent message can be answered without a database round-trip.
+     */
+    private final Cache<UUID, Message> recentMessages = CacheBuilder.newBuilder()
+            .maximumSize(4096)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+
+    public UUID addMessage(@NotNull Component component, @NotNull String message) {
+        var hash = KosuzuHashesEverything.fingerprint(component);
+
+        var cached = messageCache.getIfPresent(hash);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Serialized and queued outside the cache, since the recorder calls back into it to forget dropped messages
+        var json = JSONComponentSerializer.json().serialize(component);
+        var lookup = addMessageSQLWrapper(hash, json, message);
+
+        // Not remembered if the recorder dropped it, so a repeat gets another chance to be written
+        if (lookup != null) {
+            recentMessages.put(lookup, new Message(message, json));
+
+            // Another thread may have queued the same message meanwhile; both rows resolve, but repeats share the first
+            var previous = messageCache.asMap().putIfAbsent(hash, lookup);
+            if (previous != null) {
+                return previous;
+            }
+        }
 
-    public UUID addMessage(@NotNull String json, @NotNull String message) {
-        return messageCache.getUnchecked(new Message(message, json));
+        // The click event still needs a UUID, even though this one will never resolve
+        return lookup != null ? lookup : UUID.randomUUID();
+    }
+
+    /**
+     * Forgets a message the recorder dropped before writing it, so repeats of it aren't handed its lookup UUID
+     */
+    void forgetMessage(@NotNull PendingMessage message) {
+        messageCache.asMap().remove(message.hash(), message.lookup());
+        recentMessages.invalidate(message.lookup());
+    }
+
+    /**
+     * Gets a message that was sent recently, without going to the database
+     * @param lookup The UUID handed out by {@link #addMessage(Component, String)}
+     * @return The message, or null if it is no longer in memory
+     */
+    public @Nullable Message getRecentMessage(@NotNull UUID lookup) {
+        return recentMessages.getIfPresent(lookup);
     }
 
     /**
@@ -439,74 +782,362 @@ public class KosuzuRemembersEverything implements Closeable {
      * So, we've created a new table called `user_message_lookup` that links the eagerly generated UUID to the actual UUID.
      * Note that it's possible that a person tries to translate a message before it's been added to the database (async).
      */
-    private @NotNull UUID addMessageSQLWrapper(@NotNull String json, @NotNull String message) {
-        UUID uuid = UUID.randomUUID();
+    private @Nullable UUID addMessageSQLWrapper(@NotNull HashCode hash, @NotNull String json, @NotNull String message) {
+        // Written asynchronously with the next batch
+        return recorder.enqueue(hash, json, message);
+    }
 
-        // Invoke addMessageSQL asynchronously
-        kosuzu.getServer().getScheduler().runTaskAsynchronously(kosuzu, () -> addMessageSQL(uuid, json, message));
+    public KosuzuRecordsEverything getRecorder() {
+        return recorder;
+    }
 
-        return uuid;
+    public KosuzuTidiesEverything getRetention() {
+        return retention;
     }
 
-    private void addMessageSQL(@NotNull UUID lookupUUID, @NotNull String json, @NotNull String message) {
-        try (var connection = getConnection()) {
-            UUID messageUUID = null;
-
-            // Store the message contents (plain text) in the database
-            try (var statement = connection.prepareStatement("SELECT uuid FROM `message` WHERE `text` = ?")) {
-                statement.setString(1, message);
-                try (var data = statement.executeQuery()) {
-                    if (data.next()) {
-                        messageUUID = UUID.fromString(data.getString("uuid"));
+    public KosuzuRecognizesEverything getRecognizer() {
+        return recognizer;
+    }
+
+    /**
+     * Writes a batch of chat messages in a single transaction.
+     * Messages are deduplicated by their plain text, and Minecraft messages by their fingerprint.
+     * Only called from the message writer's single thread, so nothing else inserts into `user_message` concurrently.
+     * @param batch The messages to write
+     */
+    void addMessagesSQL(@NotNull List<PendingMessage> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        var now = System.currentTimeMillis();
+
+        write(connection -> {
+            connection.setAutoCommit(false);
+
+            try {
+                // Store the message contents (plain text) in the database, keeping whatever is already there
+                // The language is guessed locally, so messages already in a reader's language never need DeepL
+                var texts = batch.stream().map(PendingMessage::text).distinct().toList();
+
+                try (var statement = connection.prepareStatement(s("INSERT IGNORE INTO `message` (`uuid`, `text`, `language`) VALUES (?, ?, ?)"))) {
+                    for (var text : texts) {
+                        statement.setBytes(1, toBytes(UUID.randomUUID()));
+                        statement.setString(2, text);
+                        statement.setString(3, recognizer.detect(text));
+                        statement.addBatch();
+                    }
+
+                    statement.executeBatch();
+                }
+
+                var messageIds = new HashMap<String, byte[]>();
+
+                // One text at a time, so the database compares them by the column's collation: on MySQL it ignores
+                // case and accents, so the row INSERT IGNORE kept may not be spelled exactly like this text
+                try (var statement = connection.prepareStatement("SELECT `uuid` FROM `message` WHERE `text` = ?")) {
+                    for (var text : texts) {
+                        statement.setString(1, text);
+
+                        try (var data = statement.executeQuery()) {
+                            if (data.next()) {
+                                messageIds.put(text, data.getBytes("uuid"));
+                            }
+                        }
+                    }
+                }
+
+                // Store the JSON Minecraft message in the database, reusing rows with the same fingerprint
+                var hashes = batch.stream().map(PendingMessage::hash).distinct().toList();
+                var userMessageIds = new HashMap<HashCode, byte[]>();
+
+                try (var statement = connection.prepareStatement("SELECT `uuid`, `hash` FROM `user_message` WHERE `hash` IN (" + placeholders(hashes.size()) + ")")) {
+                    for (int i = 0; i < hashes.size(); i++) {
+                        statement.setBytes(i + 1, hashes.get(i).asBytes());
+                    }
+
+                    try (var data = statement.executeQuery()) {
+                        while (data.next()) {
+                            userMessageIds.put(HashCode.fromBytes(data.getBytes("hash")), data.getBytes("uuid"));
+                        }
                     }
                 }
+
+                try (var statement = connection.prepareStatement("INSERT INTO `user_message` (`uuid`, `message_id`, `json_msg`, `hash`, `created_at`) VALUES (?, ?, ?, ?, ?)")) {
+                    for (var message : batch) {
+                        if (userMessageIds.containsKey(message.hash())) {
+                            continue;
+                        }
+
+                        var uuid = toBytes(UUID.randomUUID());
+                        userMessageIds.put(message.hash(), uuid);
+
+                        statement.setBytes(1, uuid);
+                        statement.setBytes(2, messageIds.get(message.text()));
+                        statement.setString(3, message.json());
+                        statement.setBytes(4, message.hash().asBytes());
+                        statement.setLong(5, now);
+                        statement.addBatch();
+                    }
+
+                    statement.executeBatch();
+                }
+
+                // Finally, store the lookup UUIDs
+                try (var statement = connection.prepareStatement("INSERT INTO `user_message_lookup` (`uuid`, `user_message_id`, `created_at`) VALUES (?, ?, ?)")) {
+                    for (var message : batch) {
+                        statement.setBytes(1, toBytes(message.lookup()));
+                        statement.setBytes(2, userMessageIds.get(message.hash()));
+                        statement.setLong(3, now);
+                        statement.addBatch();
+                    }
+
+                    statement.executeBatch();
+                }
+
+                connection.commit();
+                return null;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
+        });
+    }
 
-            if (messageUUID == null) {
-                messageUUID = UUID.randomUUID();
-                try (var statement = connection.prepareStatement("INSERT INTO `message` (`uuid`, `text`) VALUES (?, ?)")) {
-                    statement.setString(1, messageUUID.toString());
-                    statement.setString(2, message);
-                    statement.execute();
+    /**
+     * Finds where a row cap falls, for tables with a `created_at` column
+     * @param table The table, which must be one of ours
+     * @param maxRows The most rows to keep, or 0 for no cap
+     * @return The oldest `created_at` to keep so that at most maxRows are left, or 0 if the table is within the cap
+     */
+    long getRowCapCutoff(@NotNull String table, long maxRows) throws SQLException {
+        if (maxRows <= 0) {
+            return 0;
+        }
+
+        try (var connection = getConnection()) {
+            try (var statement = connection.prepareStatement("SELECT `created_at` FROM `" + table + "` ORDER BY `created_at` DESC LIMIT 1 OFFSET ?")) {
+                statement.setLong(1, maxRows);
+                try (var result = statement.executeQuery()) {
+                    return result.next() ? result.getLong(1) + 1 : 0;
                 }
             }
+        }
+    }
 
-            UUID uuid = null;
-            // Store the JSON Minecraft message in the database
-            try (var statement = connection.prepareStatement("SELECT `uuid` FROM `user_message` WHERE `json_msg` = ?")) {
-                statement.setString(1, json);
-                try (var data = statement.executeQuery()) {
-                    if (data.next()) {
-                        uuid = UUID.fromString(data.getString("uuid"));
+    /**
+     * Deletes the oldest lookups written before a cutoff
+     * @param cutoff Lookups with an older `created_at` are deleted
+     * @param limit The most lookups to delete in one go, to keep the write short
+     * @return The number of lookups deleted
+     */
+    int deleteExpiredLookups(long cutoff, int limit) throws SQLException {
+        return write(connection -> {
+            // SQLite can't DELETE ... LIMIT without a compile-time option
+            try (var statement = connection.prepareStatement(isSqlite
+                    ? "DELETE FROM `user_message_lookup` WHERE rowid IN (SELECT rowid FROM `user_message_lookup` WHERE `created_at` < ? ORDER BY `created_at` LIMIT ?)"
+                    : "DELETE FROM `user_message_lookup` WHERE `created_at` < ? ORDER BY `created_at` LIMIT ?")) {
+                statement.setLong(1, cutoff);
+                statement.setInt(2, limit);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Deletes Minecraft messages written before a cutoff that no lookup points to any more, then the plain text
+     * messages (and their translations) that only they were using
+     * @param cutoff Minecraft messages with an older `created_at` are deleted
+     * @param limit The most Minecraft messages to delete in one go, to keep the write short
+     * @return The number of rows deleted from each table
+     */
+    @NotNull
+    Reclaimed deleteUnreferencedMessages(long cutoff, int limit) throws SQLException {
+        return write(connection -> {
+            var userMessageIds = new ArrayList<byte[]>();
+            var messageIds = new ArrayList<byte[]>();
+
+            try (var statement = connection.prepareStatement("SELECT `uuid`, `message_id` FROM `user_message` WHERE `created_at` < ? AND NOT EXISTS (SELECT 1 FROM `user_message_lookup` WHERE `user_message_lookup`.`user_message_id` = `user_message`.`uuid`) ORDER BY `created_at` LIMIT ?")) {
+                statement.setLong(1, cutoff);
+                statement.setInt(2, limit);
+                try (var result = statement.executeQuery()) {
+                    while (result.next()) {
+                        userMessageIds.add(result.getBytes("uuid"));
+                        messageIds.add(result.getBytes("message_id"));
                     }
                 }
             }
 
-            if (uuid == null) {
-                uuid = UUID.randomUUID();
+            if (userMessageIds.isEmpty()) {
+                return new Reclaimed(0, 0, 0);
+            }
 
-                try (var statement = connection.prepareStatement("INSERT INTO `user_message` (`uuid`, `message_id`, `json_msg`) VALUES (?, ?, ?)")) {
-                    statement.setString(1, uuid.toString());
-                    statement.setString(2, messageUUID.toString());
-                    statement.setString(3, json);
-                    statement.execute();
+            connection.setAutoCommit(false);
+
+            try {
+                var reclaimed = new Reclaimed(
+                        deleteEach(connection, "DELETE FROM `user_message` WHERE `uuid` = ?", userMessageIds),
+                        deleteEach(connection, "DELETE FROM `message` WHERE `uuid` = ? AND NOT EXISTS (SELECT 1 FROM `user_message` WHERE `user_message`.`message_id` = `message`.`uuid`)", messageIds),
+                        // MySQL cascades this, but SQLite doesn't enforce foreign keys
+                        deleteEach(connection, "DELETE FROM `message_translation` WHERE `message_id` = ? AND NOT EXISTS (SELECT 1 FROM `message` WHERE `message`.`uuid` = `message_translation`.`message_id`)", messageIds)
+                );
+
+                connection.commit();
+                return reclaimed;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    private static int deleteEach(@NotNull Connection connection, @NotNull String sql, @NotNull List<byte[]> keys) throws SQLException {
+        try (var statement = connection.prepareStatement(sql)) {
+            for (var key : keys) {
+                statement.setBytes(1, key);
+                statement.addBatch();
+            }
+
+            var deleted = 0;
+            for (var count : statement.executeBatch()) {
+                deleted += Math.max(0, count);
+            }
+
+            return deleted;
+        }
+    }
+
+    /**
+     * Makes SQLite return deleted pages to the file system on request, rather than keeping them for reuse.
+     * Only takes effect after a full VACUUM, which rewrites the whole file (needing as much free disk space again)
+     * and holds up every other write until it's done, so it's only ever run by an admin (SQLite only)
+     * @return True if the database was converted, false if it already was
+     */
+    boolean enableIncrementalVacuum() throws SQLException {
+        return write(connection -> {
+            try (var statement = connection.createStatement()) {
+                if (queryInt(statement, "PRAGMA auto_vacuum") == 2) {
+                    return false;
                 }
+
+                statement.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                statement.execute("VACUUM");
+                return true;
             }
+        });
+    }
 
-            // Finally, store the lookup UUID
-            try (var statement = connection.prepareStatement("INSERT INTO `user_message_lookup` (`uuid`, `user_message_id`) VALUES (?, ?)")) {
-                statement.setString(1, lookupUUID.toString());
-                statement.setString(2, uuid.toString());
-                statement.execute();
+    /**
+     * Returns some free pages to the file system (SQLite only)
+     * @param pages The most pages to release in one go, to keep the write short
+     * @return The number of pages released, always 0 before {@link #enableIncrementalVacuum()}
+     */
+    int compact(int pages) throws SQLException {
+        return write(connection -> {
+            try (var statement = connection.createStatement()) {
+                if (queryInt(statement, "PRAGMA auto_vacuum") != 2) {
+                    return 0;
+                }
+
+                var before = queryInt(statement, "PRAGMA freelist_count");
+                connection.setAutoCommit(false);
+
+                try {
+                    // incremental_vacuum frees one page per step, but the driver only steps a statement once,
+                    // and leaves it in progress (blocking the commit) until it's closed
+                    for (int i = 0; i < Math.min(pages, before); i++) {
+                        try (var vacuum = connection.createStatement()) {
+                            vacuum.execute("PRAGMA incremental_vacuum(1)");
+                        }
+                    }
+
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+
+                return before - queryInt(statement, "PRAGMA freelist_count");
             }
-        } catch (SQLException e) {
-            logger.severe("Failed to add message!");
-            logger.severe(e.getMessage());
+        });
+    }
+
+    private static int queryInt(@NotNull Statement statement, @NotNull String sql) throws SQLException {
+        try (var result = statement.executeQuery(sql)) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+
+    public boolean isSqlite() {
+        return isSqlite;
+    }
+
+    /**
+     * UUIDs are stored as their 16 raw bytes, most significant first, the same as UNHEX(REPLACE(uuid, '-', '')) gives
+     */
+    static byte @NotNull [] toBytes(@NotNull UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    static @NotNull UUID fromBytes(byte @NotNull [] bytes) {
+        if (bytes.length != 16) {
+            throw new KosuzuException("Expected a 16 byte UUID, got " + bytes.length + " bytes!");
         }
+
+        var buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
     }
 
     @Override
     public void close() {
+        retention.close();
+        recorder.close();
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for pending database calls!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writer != null) {
+            // Queued behind any writes still pending
+            writer.execute(() -> {
+                try {
+                    if (writerConnection != null) {
+                        writerConnection.close();
+                    }
+                } catch (SQLException e) {
+                    logger.severe("Failed to close database writer connection!");
+                    logger.severe(e.getMessage());
+                }
+            });
+            writer.shutdown();
+
+            try {
+                if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                    logger.warning("Timed out waiting for the database writer!");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         try {
             dataSource.close();
         } catch (SQLException e) {
@@ -0,0 +1,170 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import net.gensokyoreimagined.motoori.KosuzuTranslationBackends.BackendException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Retries translation requests that failed for reasons that usually pass (429, 5xx, no response), waiting as long as
+ * Retry-After asks, or otherwise a random time up to an exponentially growing limit ("full jitter"), so a burst of
+ * failed requests doesn't come back all at once. Nothing sleeps: retries are scheduled on a timer thread.
+ */
+public class KosuzuRetriesEverything implements Closeable {
+    private final ScheduledExecutorService timer;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long maxTotalMs;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Failed attempts by HTTP status, with {@link BackendException#NO_RESPONSE} for requests that got no answer
+     */
+    private final Map<Integer, LongAdder> failures = new ConcurrentHashMap<>();
+
+    public KosuzuRetriesEverything(@NotNull FileConfiguration config) {
+        maxAttempts = Math.max(1, config.getInt("retry.max_attempts", 3));
+        baseDelayMs = Math.max(1, config.getLong("retry.base_delay_ms", 250));
+        maxDelayMs = Math.max(baseDelayMs, config.getLong("retry.max_delay_ms", 4000));
+        maxTotalMs = Math.max(0, config.getLong("retry.max_total_ms", 8000));
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Kosuzu Retry Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Makes an attempt, and makes it again after a delay for as long as it fails with a retryable {@link BackendException},
+     * it has attempts left, and the next one would start before the time limit
+     * @param attempt Starts one attempt
+     * @return A future of the first successful attempt, or failed like the last attempt
+     */
+    public <T> CompletableFuture<T> run(@NotNull Supplier<CompletableFuture<T>> attempt) {
+        var result = new CompletableFuture<T>();
+        attempt(attempt, result, 1, System.currentTimeMillis() + maxTotalMs);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> attempt, CompletableFuture<T> result, int number, long deadline) {
+        CompletableFuture<T> future;
+
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+                return;
+            }
+
+            var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+            if (!(cause instanceof BackendException failure) || failure.getStatus() == BackendException.NOT_SENT) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            failures.computeIfAbsent(failure.getStatus(), status -> new LongAdder()).increment();
+
+            if (!failure.isRetryable() || number >= maxAttempts) {
+                if (failure.isRetryable()) exhausted.incrementAndGet();
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            var delay = failure.getRetryAfterMs() >= 0 ? failure.getRetryAfterMs() : backoff(number);
+
+            // Better to give up now and let another backend try than to wait past the limit
+            if (System.currentTimeMillis() + delay > deadline) {
+                exhausted.incrementAndGet();
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            retries.incrementAndGet();
+
+            try {
+                timer.schedule(() -> attempt(attempt, result, number + 1, deadline), delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException rejected) {
+                // Shutting down
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * @param attempt The number of the attempt that just failed, starting at 1
+     * @return A random delay between 0 and base * 2^(attempt - 1), capped at the max delay
+     */
+    private long backoff(int attempt) {
+        var limit = baseDelayMs << Math.min(attempt - 1, 30);
+        if (limit <= 0 || limit > maxDelayMs) limit = maxDelayMs;
+
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    /**
+     * @return The number of retries scheduled since the server started
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return The number of requests that still failed with a retryable error after running out of attempts or time
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return Failed attempts by HTTP status since the server started, with {@link BackendException#NO_RESPONSE} for requests that got no answer
+     */
+    public @NotNull Map<Integer, Long> getFailures() {
+        var counts = new TreeMap<Integer, Long>();
+        failures.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,145 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Character-weighted token buckets in front of DeepL: one per player, so nobody can burn the quota by spamming clicks,
+ * and one shared by everyone, so the server as a whole stays under what DeepL (or the mobile endpoint) tolerates.
+ */
+public class KosuzuThrottlesEverything {
+    private final double playerCapacity;
+    private final double playerRefillRate;
+    private final TokenBucket global;
+
+    private final LoadingCache<UUID, TokenBucket> players;
+
+    private final AtomicLong rejectedByPlayer = new AtomicLong();
+    private final AtomicLong rejectedByGlobal = new AtomicLong();
+
+    /**
+     * Thrown (wrapped in a future) when a translation is refused by a rate limit
+     */
+    public static class RateLimitedException extends KosuzuException {
+        public RateLimitedException(String message) {
+            super(message);
+        }
+    }
+
+    public KosuzuThrottlesEverything(Kosuzu kosuzu) {
+        var config = kosuzu.config;
+
+        playerCapacity = Math.max(1, config.getDouble("ratelimit.token_bucket_capacity", 256));
+        playerRefillRate = Math.max(0, config.getDouble("ratelimit.token_refill_rate", 25));
+        global = new TokenBucket(
+                Math.max(1, config.getDouble("ratelimit.global_bucket_capacity", 5000)),
+                Math.max(0, config.getDouble("ratelimit.global_refill_rate", 500))
+        );
+
+        // An idle player's bucket is full anyway, so forgetting it loses nothing
+        players = CacheBuilder.newBuilder()
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build(new CacheLoader<>() {
+                    @Override
+                    public @NotNull TokenBucket load(@NotNull UUID key) {
+                        return new TokenBucket(playerCapacity, playerRefillRate);
+                    }
+                });
+    }
+
+    /**
+     * Takes tokens for a translation from the player's bucket
+     * @param player The player asking for a translation, or null if nobody in particular asked
+     * @param characters The length of the text to translate
+     * @throws RateLimitedException If the player is over their limit
+     */
+    public void acquirePlayer(@Nullable UUID player, int characters) {
+        if (player == null) {
+            return;
+        }
+
+        if (!players.getUnchecked(player).tryAcquire(characters)) {
+            rejectedByPlayer.incrementAndGet();
+            throw new RateLimitedException("Player " + player + " is translating too quickly");
+        }
+    }
+
+    /**
+     * Takes tokens for a request to DeepL from the global bucket
+     * @param characters The length of the text to translate
+     * @throws RateLimitedException If the server is over its limit
+     */
+    public void acquireGlobal(int characters) {
+        if (!global.tryAcquire(characters)) {
+            rejectedByGlobal.incrementAndGet();
+            throw new RateLimitedException("Server is translating too quickly");
+        }
+    }
+
+    public long getRejectedByPlayer() {
+        return rejectedByPlayer.get();
+    }
+
+    public long getRejectedByGlobal() {
+        return rejectedByGlobal.get();
+    }
+
+    /**
+     * Lock-free token bucket, refilled lazily whenever it is used
+     */
+    private static class TokenBucket {
+        private final double capacity;
+        private final double refillPerNano;
+        private final AtomicReference<State> state;
+
+        private record State(double tokens, long timestamp) {}
+
+        TokenBucket(double capacity, double refillPerSecond) {
+            this.capacity = capacity;
+            refillPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+            state = new AtomicReference<>(new State(capacity, System.nanoTime()));
+        }
+
+        boolean tryAcquire(int characters) {
+            // Texts longer than the bucket could never pass otherwise
+            var cost = Math.min(characters, capacity);
+
+            while (true) {
+                var current = state.get();
+                var now = System.nanoTime();
+                var tokens = Math.min(capacity, current.tokens() + (now - current.timestamp()) * refillPerNano);
+
+                if (tokens < cost) {
+                    return false;
+                }
+
+                if (state.compareAndSet(current, new State(tokens - cost, now))) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Retention for chat history: every chat message adds a lookup row, so old ones are deleted in the background,
+ * along with the messages nothing points to any more. Deletes happen in small batches with a pause in between,
+ * so chat never waits long on the database while this runs.
+ */
+public class KosuzuTidiesEverything implements Closeable {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Pages returned to the file system per write when compacting SQLite (4 MB with the default page size)
+     */
+    private static final int PAGES_PER_COMPACT = 1024;
+
+    private final Logger logger;
+    private final KosuzuRemembersEverything database;
+    private final ScheduledExecutorService scheduler;
+
+    private final int batchSize;
+    private final long pauseMs;
+    private final long lookupMaxAge;
+    private final long lookupMaxRows;
+    private final long userMessageMaxAge;
+    private final long userMessageMaxRows;
+
+    private final AtomicLong deletedLookups = new AtomicLong();
+    private final AtomicLong deletedUserMessages = new AtomicLong();
+    private final AtomicLong deletedMessages = new AtomicLong();
+    private final AtomicLong releasedPages = new AtomicLong();
+
+    public KosuzuTidiesEverything(@NotNull KosuzuRemembersEverything database, @NotNull FileConfiguration config, @NotNull Logger logger) {
+        this.database = database;
+        this.logger = logger;
+
+        batchSize = Math.max(1, config.getInt("retention.batch_size", 500));
+        pauseMs = Math.max(0, config.getLong("retention.pause_ms", 100));
+        lookupMaxAge = Math.max(0, config.getLong("retention.lookup.max_age_days", 30)) * DAY;
+        lookupMaxRows = Math.max(0, config.getLong("retention.lookup.max_rows", 5000000));
+        userMessageMaxAge = Math.max(0, config.getLong("retention.user_message.max_age_days", 30)) * DAY;
+        userMessageMaxRows = Math.max(0, config.getLong("retention.user_message.max_rows", 1000000));
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Kosuzu Retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (config.getBoolean("retention.enabled", true)) {
+            var interval = Math.max(1, config.getLong("retention.interval_minutes", 60));
+            // Not straight away, so it doesn't compete with everyone joining after a restart
+            scheduler.scheduleWithFixedDelay(this::run, 5, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * @return The number of lookups deleted since the server started
+     */
+    public long getDeletedLookups() {
+        return deletedLookups.get();
+    }
+
+    /**
+     * @return The number of Minecraft messages deleted since the server started
+     */
+    public long getDeletedUserMessages() {
+        return deletedUserMessages.get();
+    }
+
+    /**
+     * @return The number of plain text messages deleted since the server started
+     */
+    public long getDeletedMessages() {
+        return deletedMessages.get();
+    }
+
+    /**
+     * @return The number of SQLite pages returned to the file system since the server started
+     */
+    public long getReleasedPages() {
+        return releasedPages.get();
+    }
+
+    private void run() {
+        try {
+            var now = System.currentTimeMillis();
+
+            var lookupCutoff = cutoff(now, lookupMaxAge, database.getRowCapCutoff("user_message_lookup", lookupMaxRows));
+            var lookups = repeat(() -> database.deleteExpiredLookups(lookupCutoff, batchSize), batchSize);
+
+            var userMessageCutoff = cutoff(now, userMessageMaxAge, database.getRowCapCutoff("user_message", userMessageMaxRows));
+            var userMessages = 0L;
+            var messages = 0L;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                var reclaimed = database.deleteUnreferencedMessages(userMessageCutoff, batchSize);
+                userMessages += reclaimed.userMessages();
+                messages += reclaimed.messages();
+
+                if (reclaimed.userMessages() < batchSize || !pause()) break;
+            }
+
+            var pages = database.isSqlite() ? compact() : 0;
+
+            deletedLookups.addAndGet(lookups);
+            deletedUserMessages.addAndGet(userMessages);
+            deletedMessages.addAndGet(messages);
+            releasedPages.addAndGet(pages);
+
+            if (lookups + userMessages + messages + pages > 0) {
+                logger.info("Cleaned up " + lookups + " lookups, " + userMessages + " Minecraft messages and " + messages + " messages"
+                        + (database.isSqlite() ? ", releasing " + pages + " pages" : "") + " in " + (System.currentTimeMillis() - now) + " ms");
+            }
+        } catch (SQLException e) {
+            // Try again next time
+            logger.severe("Failed to clean up old messages!");
+            logger.severe(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns free pages to the file system, a chunk at a time. Does nothing until an admin has run /kosuzu vacuum,
+     * as switching SQLite to incremental vacuum rewrites the whole file, holding up every write while it does.
+     * InnoDB reuses free pages by itself, and its tables can't be partitioned because they have foreign keys,
+     * so there's nothing to do for MySQL.
+     */
+    private long compact() throws SQLException {
+        return repeat(() -> database.compact(PAGES_PER_COMPACT), PAGES_PER_COMPACT);
+    }
+
+    /**
+     * One batch of deletes or compaction
+     */
+    @FunctionalInterface
+    private interface Batch {
+        int run() throws SQLException;
+    }
+
+    /**
+     * Runs a batch until it comes up short, pausing in between so other writes get a turn
+     * @return The total the batches returned
+     */
+    private long repeat(@NotNull Batch batch, int fullBatch) throws SQLException {
+        var total = 0L;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            var count = batch.run();
+            total += count;
+
+            if (count < fullBatch || !pause()) break;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return False if interrupted, i.e. the plugin is shutting down
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(pauseMs);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return The stricter of the age limit and the row cap, as the oldest `created_at` to keep
+     */
+    private static long cutoff(long now, long maxAge, long rowCapCutoff) {
+        var ageCutoff = maxAge > 0 ? now - maxAge : 0;
+        return Math.max(ageCutoff, rowCapCutoff);
+    }
+
+    @Override
+    public void close() {
+        // Interrupts the pause between batches, so a long clean-up doesn't hold up shutdown
+        scheduler.shutdownNow();
+
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for retention to stop!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -15,147 +15,318 @@
 
 package net.gensokyoreimagined.motoori;
 
-import com.github.mizosoft.methanol.MoreBodyHandlers;
-import com.google.gson.Gson;
-import net.gensokyoreimagined.motoori.KosuzuTranslationModels.*;
+import net.gensokyoreimagined.motoori.KosuzuTranslationBackends.BackendException;
+import net.gensokyoreimagined.motoori.KosuzuTranslationBackends.TranslationBackend;
+import net.gensokyoreimagined.motoori.KosuzuTranslationModels.TranslatedText;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.jetbrains.annotations.Nullable;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.io.Closeable;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
- * Invokes DeepLX (i.e., DeepL mobile app impersonation) to translate everything; if rate-limited, use DeepL API
- * DeepLX derived from <a href="https://github.com/OwO-Network/PyDeepLX">PyDeepLX</a>
+ * Translates everything through the backends listed in `translation.backends`: by default DeepLX
+ * (i.e., DeepL mobile app impersonation), and the DeepL API whenever DeepLX is rate-limited or down
  */
-public class KosuzuTranslatesEverything {
-    private final HttpClient client;
+public class KosuzuTranslatesEverything implements Closeable {
+    private final KosuzuConnectsEverything transport;
     private final Logger logger;
     private final FileConfiguration config;
+    private final KosuzuBatchesEverything dispatcher;
+    private final KosuzuCachesEverything cache;
+    private final KosuzuThrottlesEverything throttle;
+    private final KosuzuRetriesEverything retries;
 
-    private final Gson gson = new Gson();
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Translations currently waiting on a backend; identical requests share the same future instead of racing
+     */
+    private final ConcurrentHashMap<InFlightTranslation, CompletableFuture<TranslatedText>> inFlight = new ConcurrentHashMap<>();
+
+    private record InFlightTranslation(String text, String language) {}
+
+    /**
+     * The configured backends, in order of preference
+     */
+    private final List<Route> routes = new ArrayList<>();
+
+    /**
+     * A backend, along with the circuit breaker deciding whether to use it
+     */
+    private record Route(TranslationBackend backend, KosuzuBreaksEverything breaker) {}
 
     public KosuzuTranslatesEverything(Kosuzu kosuzu) {
         logger = kosuzu.getLogger();
         config = kosuzu.config;
-        client = HttpClient
-                .newBuilder()
-                .followRedirects(HttpClient.Redirect.ALWAYS)
-                .build();
+        transport = new KosuzuConnectsEverything(kosuzu);
+        dispatcher = new KosuzuBatchesEverything(kosuzu, this);
+        cache = kosuzu.cache;
+        throttle = new KosuzuThrottlesEverything(kosuzu);
+        retries = new KosuzuRetriesEverything(config);
+
+        for (var id : config.getStringList("translation.backends")) {
+            // Still honoured, since it predates the list
+            if (id.equalsIgnoreCase("deepl-mobile") && !config.getBoolean("use-deepl-mobile")) {
+                continue;
+            }
+
+            var backend = KosuzuTranslationBackends.create(id, kosuzu, transport);
+            if (backend == null) {
+                logger.warning("Unknown translation backend " + id + " in config.yml");
+                continue;
+            }
+
+            routes.add(new Route(backend, new KosuzuBreaksEverything(backend.getName(), config, logger)));
+        }
+
+        if (routes.isEmpty()) {
+            logger.warning("No translation backends configured, translating with the DeepL API");
+            var backend = Objects.requireNonNull(KosuzuTranslationBackends.create("deepl-api", kosuzu, transport));
+            routes.add(new Route(backend, new KosuzuBreaksEverything(backend.getName(), config, logger)));
+        }
     }
 
-    private DeepLTranslation translateViaMobileRPC(String input, @Nullable String language) {
-        // issue: language is weirdly converted for mobile API?
-        if (language == null) {
-            language = Objects.requireNonNull(config.getString("default-language"));
+    /**
+     * Translates several texts into the same language with as few requests as possible.
+     * Backends are tried from the healthiest down, skipping any whose circuit breaker is open,
+     * and each one is retried while its errors look temporary.
+     * @param inputs The texts to translate, at most {@link KosuzuBatchesEverything#MAX_BATCH_SIZE}
+     * @param language The language to translate into
+     * @return A future of the translations in the same order as the inputs, or of null if every backend failed
+     */
+    CompletableFuture<@Nullable List<TranslatedText>> translateBatch(List<String> inputs, String language) {
+        var candidates = new ArrayList<Route>();
+
+        // A backend that isn't set up (e.g. the API without a key) would only log a warning, so it's left out unless it's all there is
+        for (var route : routes) {
+            if (route.backend().isConfigured() && route.backend().getCapabilities().supports(language)) {
+                candidates.add(route);
+            }
         }
 
-        // region not respected in this API
-        language = language.substring(0, 2).toLowerCase();
+        if (candidates.isEmpty()) {
+            candidates.addAll(routes);
+        }
+
+        // Stable, so the configured order decides between backends that are about as healthy as each other
+        candidates.sort(Comparator
+                .comparing((Route route) -> route.breaker().getState())
+                .thenComparingInt(route -> (int) (route.breaker().getUnhealthyRate() * 10)));
 
-        var deeplRequest = new DeepLMobileRequest(input, language);
-        var jsonRequest = gson.toJson(deeplRequest);
+        return translateVia(candidates.iterator(), inputs, language);
+    }
 
-        if ((deeplRequest.id + 5) % 29 == 0 || (deeplRequest.id + 3) % 13 == 0) {
-            jsonRequest = jsonRequest.replace("\"method\":\"", "\"method\" : \"");
-        } else {
-            jsonRequest = jsonRequest.replace("\"method\" : \"", "\"method\": \"");
+    private CompletableFuture<@Nullable List<TranslatedText>> translateVia(Iterator<Route> candidates, List<String> inputs, String language) {
+        if (!candidates.hasNext()) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        final String DEEPL_MOBILE_API = "https://www2.deepl.com/jsonrpc";
-        var request = HttpRequest
-            .newBuilder(URI.create(DEEPL_MOBILE_API))
-            // we have an impostor among us
-            .header("Content-Type", "application/json")
-            .header("Accept", "*/*")
-            .header("x-app-os-name", "iOS")
-            .header("x-app-os-version", "16.3.0")
-            .header("Accept-Language", "en-US,en;q=0.9")
-            .header("Accept-Encoding", "gzip, deflate, br")
-            .header("x-app-device", "iPhone13,2")
-            .header("User-Agent", "DeepL-iOS/2.9.1 iOS 16.3.0 (iPhone13,2)")
-            .header("x-app-build", "510265")
-            .header("x-app-version", "2.9.1")
-            // .header("Connection", "keep-alive")
-            .POST(HttpRequest.BodyPublishers.ofString(jsonRequest))
-            .build();
+        var route = candidates.next();
 
-        try {
-            // MoreBodyHandlers since the response is brotli-compressed
-            var response = client.send(request, MoreBodyHandlers.decoding(HttpResponse.BodyHandlers.ofString()));
-            var statusCode = response.statusCode();
-            var body = response.body();
-
-            if (statusCode != 200) {
-                logger.warning("Failed to send request to DeepL via mobile API:\n" + body);
-                return null;
+        return retries.run(() -> attempt(route, inputs, language)).handle((translations, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(translations);
             }
 
-            var deeplResponse = gson.fromJson(body, DeepLMobileResponse.class);
-            return deeplResponse.getTranslation();
+            // Skipped rather than failed if its circuit breaker is open, nothing worth a warning
+            var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (!(cause instanceof BackendException failure && failure.getStatus() == BackendException.NOT_SENT)) {
+                logger.warning(route.backend().getName() + " failed" + (candidates.hasNext() ? ", falling back" : "") + ": " + cause.getMessage());
+            }
+
+            return translateVia(candidates, inputs, language);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * One request to a backend, if its circuit breaker allows it, with the outcome recorded by the breaker
+     */
+    private CompletableFuture<List<TranslatedText>> attempt(Route route, List<String> inputs, String language) {
+        var breaker = route.breaker();
+
+        if (!breaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new BackendException(BackendException.NOT_SENT, -1, breaker.getName() + " is cut off"));
+        }
+
+        var start = System.nanoTime();
+
+        return translateChunked(route.backend(), inputs, language)
+                .whenComplete((translations, e) -> breaker.record(e == null || !isBackendFailure(e), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * @return Whether a failed call counts against the backend: rate limiting, server errors, no answer at all
+     * (e.g. a timeout), and a key that is rejected or out of quota. Other client errors, like a 400 for a text DeepL
+     * rejects, say nothing about its health.
+     */
+    private static boolean isBackendFailure(Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return !(cause instanceof BackendException failure) || failure.isRetryable() || failure.isUnusable();
+    }
+
+    /**
+     * Splits the texts into as many calls as the backend needs, all sent at once
+     * @return A future of all the translations in order; fails if any of the calls failed
+     */
+    private static CompletableFuture<List<TranslatedText>> translateChunked(TranslationBackend backend, List<String> inputs, String language) {
+        var maxBatchSize = Math.max(1, backend.getCapabilities().maxBatchSize());
+
+        if (inputs.size() <= maxBatchSize) {
+            return backend.translate(inputs, language);
         }
-        catch (Exception e) {
-            logger.warning("Failed to send request to DeepL via mobile API:\n" + e.getMessage());
-            return null;
+
+        var chunks = new ArrayList<CompletableFuture<List<TranslatedText>>>();
+        for (int i = 0; i < inputs.size(); i += maxBatchSize) {
+            chunks.add(backend.translate(inputs.subList(i, Math.min(i + maxBatchSize, inputs.size())), language));
         }
+
+        return CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            var translations = new ArrayList<TranslatedText>(inputs.size());
+
+            for (var chunk : chunks) {
+                translations.addAll(chunk.join());
+            }
+
+            return translations;
+        });
+    }
+
+    /**
+     * @return The circuit breakers of the backends, in the order they are configured
+     */
+    public List<KosuzuBreaksEverything> getBreakers() {
+        return routes.stream().map(Route::breaker).toList();
     }
 
-    private DeepLTranslation translateViaAPI(String input, @Nullable String language) {
-        var key = config.getString("deepl-api-key");
-        if (key == null || key.equals("changeme")) {
-            logger.warning("Please set your DeepL API key in config.yml");
-            return null;
+    /**
+     * Normalizes text so that trivially different copies of the same message share translations
+     * @param text The text to normalize
+     * @return The text in NFC form, trimmed, with runs of whitespace collapsed into a single space
+     */
+    public static String normalize(String text) {
+        return WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFC).strip()).replaceAll(" ");
+    }
+
+    /**
+     * Checks whether two DeepL language codes are the same language, ignoring regional variants
+     * @param source A language code, e.g. a detected source language like "EN"
+     * @param target A language code, e.g. a target language like "EN-US"
+     * @return True if both codes refer to the same language
+     */
+    public static boolean isSameLanguage(@Nullable String source, @Nullable String target) {
+        if (source == null || target == null) {
+            return false;
         }
 
-        var url = Objects.requireNonNull(config.getString("deepl-api-url"));
-        URI uri = URI.create(url);
+        var sourceDash = source.indexOf('-');
+        var targetDash = target.indexOf('-');
+        var sourceBase = sourceDash == -1 ? source : source.substring(0, sourceDash);
+        var targetBase = targetDash == -1 ? target : target.substring(0, targetDash);
+
+        return sourceBase.equalsIgnoreCase(targetBase);
+    }
+
+    /**
+     * Translates a single text; recently seen translations are answered from memory,
+     * concurrent calls are coalesced into batched requests, and identical concurrent calls share a single request
+     * @param input The text to translate
+     * @param language The language to translate into, or null for the default language
+     * @return A future of the translation, or of null if it failed
+     */
+    public CompletableFuture<@Nullable TranslatedText> translate(String input, @Nullable String language) {
+        return translate(input, language, null);
+    }
 
+    /**
+     * Translates a single text on behalf of a player, subject to their rate limit
+     * @param input The text to translate
+     * @param language The language to translate into, or null for the default language
+     * @param requester The player asking for the translation, or null if nobody in particular asked
+     * @return A future of the translation, or of null if it failed;
+     * completes exceptionally with a {@link KosuzuThrottlesEverything.RateLimitedException} if rate-limited
+     */
+    public CompletableFuture<@Nullable TranslatedText> translate(String input, @Nullable String language, @Nullable UUID requester) {
         if (language == null) {
             language = Objects.requireNonNull(config.getString("default-language"));
         }
 
-        var deeplRequest = new DeepLRequest(input, language);
-        var request = HttpRequest
-            .newBuilder(uri)
-            .header("Authorization", "DeepL-Auth-Key " + key)
-            .header("Content-Type", "application/json")
-            .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(deeplRequest)))
-            .build();
+        var cached = cache.get(input, language);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(new TranslatedText(cached.text(), cached.sourceLanguage()));
+        }
 
         try {
-            var response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            var statusCode = response.statusCode();
-            var body = response.body();
+            throttle.acquirePlayer(requester, input.length());
+        } catch (KosuzuThrottlesEverything.RateLimitedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
-            if (statusCode != 200) {
-                logger.warning("Failed to send request to DeepL:\n" + body);
-                return null;
-            }
+        var key = new InFlightTranslation(normalize(input), language.toUpperCase());
+        var future = new CompletableFuture<TranslatedText>();
 
-            var deeplResponse = gson.fromJson(body, DeepLResponse.class);
-            return deeplResponse.getTranslation();
+        // Submitted only once the map call has returned: a batch can complete other requests synchronously,
+        // and their removals mustn't run inside a compute on the same map
+        var existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
         }
-        catch (Exception e) {
-            logger.warning("Failed to send request to DeepL:\n" + e.getMessage());
-            return null;
+
+        future.whenComplete((translation, e) -> inFlight.remove(key, future));
+
+        // Only requests that actually reach DeepL count towards the global limit
+        try {
+            throttle.acquireGlobal(key.text().length());
+        } catch (KosuzuThrottlesEverything.RateLimitedException e) {
+            future.completeExceptionally(e);
+            return future;
         }
-    }
 
-    public DeepLTranslation translate(String input, @Nullable String language) {
-        if (config.getBoolean("use-deepl-mobile")) {
-            var translation = translateViaMobileRPC(input, language);
+        dispatcher.submit(key.text(), key.language()).whenComplete((translation, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+                return;
+            }
 
-            if (translation == null) {
-                logger.warning("Falling back to DeepL API");
-            } else {
-                return translation;
+            if (translation != null && translation.text() != null && translation.sourceLanguage() != null) {
+                cache.put(key.text(), key.language(), translation.text(), translation.sourceLanguage());
             }
-        }
 
-        return translateViaAPI(input, language);
+            future.complete(translation);
+        });
+
+        return future;
+    }
+
+    public KosuzuThrottlesEverything getThrottle() {
+        return throttle;
+    }
+
+    public KosuzuConnectsEverything getTransport() {
+        return transport;
+    }
+
+    public KosuzuRetriesEverything getRetries() {
+        return retries;
+    }
+
+    @Override
+    public void close() {
+        dispatcher.close();
+        retries.close();
+        transport.close();
     }
 }
@@ -0,0 +1,382 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import com.github.mizosoft.methanol.MoreBodyHandlers;
+import com.google.gson.stream.MalformedJsonException;
+import net.gensokyoreimagined.motoori.KosuzuTranslationModels.TranslatedText;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The services translations can come from, selected in order by `translation.backends`
+ */
+public class KosuzuTranslationBackends {
+    private KosuzuTranslationBackends() {}
+
+    public interface TranslationBackend {
+        /**
+         * @return A name for logs and /kosuzu stats
+         */
+        @NotNull String getName();
+
+        @NotNull Capabilities getCapabilities();
+
+        /**
+         * @return False if the backend can't be used as configured, e.g. it has no API key
+         */
+        default boolean isConfigured() {
+            return true;
+        }
+
+        /**
+         * Translates several texts into the same language in one go
+         * @param inputs The texts to translate, at most {@link Capabilities#maxBatchSize()}
+         * @param language The DeepL code of the language to translate into, e.g. "EN-US"
+         * @return A future of the translations in the same order as the inputs;
+         * completes exceptionally with a {@link BackendException} if it failed
+         */
+        @NotNull CompletableFuture<List<TranslatedText>> translate(@NotNull List<String> inputs, @NotNull String language);
+    }
+
+    /**
+     * What a backend can do
+     * @param maxBatchSize The max number of texts in one {@link TranslationBackend#translate} call
+     * @param languages The DeepL codes of the languages it translates into, or null for all of them
+     * @param glossary Whether it can apply a glossary
+     */
+    public record Capabilities(int maxBatchSize, @Nullable Set<String> languages, boolean glossary) {
+        public boolean supports(@NotNull String language) {
+            return languages == null || languages.contains(language.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A failed translation request, and whether it's worth trying again
+     */
+    public static class BackendException extends KosuzuException {
+        /**
+         * The request never got an answer, e.g. it timed out or couldn't connect
+         */
+        public static final int NO_RESPONSE = 0;
+
+        /**
+         * The request was never sent, because the backend's circuit breaker is open
+         */
+        public static final int NOT_SENT = -1;
+
+        private final int status;
+        private final long retryAfterMs;
+
+        public BackendException(int status, long retryAfterMs, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public BackendException(String message, Throwable cause) {
+            super(message, cause);
+            status = NO_RESPONSE;
+            retryAfterMs = -1;
+        }
+
+        /**
+         * @return The HTTP status, {@link #NO_RESPONSE} or {@link #NOT_SENT}
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return How long the backend asked us to wait before trying again, or -1 if it didn't say
+         */
+        public long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+
+        /**
+         * @return True for errors that usually pass: rate limiting, server errors and no answer at all.
+         * DeepL's 456 (quota exceeded) won't pass until the quota resets, so it isn't retried.
+         */
+        public boolean isRetryable() {
+            return status == NO_RESPONSE || status == 429 || status >= 500;
+        }
+
+        /**
+         * @return True if the backend can't be used until someone fixes it or the quota resets: a key that is
+         * rejected (401, 403) or out of quota (456). Not retried, but it should stop getting requests all the same.
+         */
+        public boolean isUnusable() {
+            return status == 401 || status == 403 || status == 456;
+        }
+    }
+
+    /**
+     * @return The exception for a response that isn't 200, with the wait from its Retry-After header if it has one
+     */
+    static @NotNull BackendException fail(@NotNull String backend, @NotNull HttpResponse<InputStream> response) throws IOException {
+        var retryAfter = response.headers().firstValue("Retry-After").map(KosuzuTranslationBackends::parseRetryAfter).orElse(-1L);
+        var body = new String(response.body().readAllBytes(), StandardCharsets.UTF_8);
+        return new BackendException(response.statusCode(), retryAfter, backend + " answered " + response.statusCode() + ":\n" + body);
+    }
+
+    /**
+     * Reads a response with the codec, on a thread that may block while the body is still arriving
+     * @return The translations, one per input
+     */
+    private static CompletableFuture<List<TranslatedText>> read(
+            String backend,
+            KosuzuConnectsEverything transport,
+            CompletableFuture<HttpResponse<InputStream>> response,
+            List<String> inputs,
+            Codec codec
+    ) {
+        return response
+            .exceptionally(e -> {
+                throw new BackendException("Failed to send request to " + backend + ": " + e.getMessage(), e);
+            })
+            .thenApplyAsync(received -> {
+                try (var body = received.body()) {
+                    if (received.statusCode() != 200) {
+                        throw fail(backend, received);
+                    }
+
+                    var translations = codec.read(body);
+
+                    if (translations == null || translations.size() != inputs.size()) {
+                        throw new BackendException(200, -1, backend + " returned " + (translations == null ? "no" : translations.size()) + " translations for " + inputs.size() + " texts");
+                    }
+
+                    return translations;
+                } catch (MalformedJsonException | IllegalStateException e) {
+                    throw new BackendException(200, -1, backend + " returned malformed JSON: " + e.getMessage());
+                } catch (IOException e) {
+                    throw new BackendException("Failed to read response from " + backend + ": " + e.getMessage(), e);
+                }
+            }, transport.getReader());
+    }
+
+    @FunctionalInterface
+    private interface Codec {
+        @Nullable List<TranslatedText> read(InputStream body) throws IOException;
+    }
+
+    /**
+     * @param value Either a number of seconds or an HTTP date
+     * @return The wait in milliseconds, or -1 if it can't be read
+     */
+    static long parseRetryAfter(@NotNull String value) {
+        value = value.strip();
+
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // Not seconds, so it should be a date
+        }
+
+        try {
+            var date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param id A name from `translation.backends`
+     * @return The backend, or null if there's no backend by that name
+     */
+    static @Nullable TranslationBackend create(@NotNull String id, @NotNull Kosuzu kosuzu, @NotNull KosuzuConnectsEverything transport) {
+        return switch (id.toLowerCase(Locale.ROOT)) {
+            case "deepl-mobile" -> new DeepLMobile(kosuzu, transport);
+            case "deepl-api" -> new DeepLApi(kosuzu, transport);
+            case "mock" -> new Mock(kosuzu.config);
+            default -> null;
+        };
+    }
+
+    /**
+     * DeepLX, i.e. DeepL mobile app impersonation, derived from <a href="https://github.com/OwO-Network/PyDeepLX">PyDeepLX</a>
+     */
+    public static class DeepLMobile implements TranslationBackend {
+        private static final String DEEPL_MOBILE_API = "https://www2.deepl.com/jsonrpc";
+
+        private final KosuzuConnectsEverything transport;
+
+        DeepLMobile(Kosuzu kosuzu, KosuzuConnectsEverything transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return "DeepL mobile";
+        }
+
+        @Override
+        public @NotNull Capabilities getCapabilities() {
+            return new Capabilities(KosuzuBatchesEverything.MAX_BATCH_SIZE, null, false);
+        }
+
+        @Override
+        public @NotNull CompletableFuture<List<TranslatedText>> translate(@NotNull List<String> inputs, @NotNull String language) {
+            // issue: language is weirdly converted for mobile API?
+            // region not respected in this API
+            language = language.substring(0, 2).toLowerCase();
+
+            var body = KosuzuEncodesEverything.writeMobileRequest(inputs, language);
+
+            var request = HttpRequest
+                .newBuilder(URI.create(DEEPL_MOBILE_API))
+                // we have an impostor among us
+                .header("Content-Type", "application/json")
+                .header("Accept", "*/*")
+                .header("x-app-os-name", "iOS")
+                .header("x-app-os-version", "16.3.0")
+                .header("Accept-Language", "en-US,en;q=0.9")
+                .header("Accept-Encoding", "gzip, deflate, br")
+                .header("x-app-device", "iPhone13,2")
+                .header("User-Agent", "DeepL-iOS/2.9.1 iOS 16.3.0 (iPhone13,2)")
+                .header("x-app-build", "510265")
+                .header("x-app-version", "2.9.1")
+                // No "Connection: keep-alive": the client keeps connections open by itself, and HTTP/2 forbids the header
+                .POST(body.publisher());
+
+            // MoreBodyHandlers since the response is brotli-compressed
+            var response = transport.send(request, MoreBodyHandlers.decoding(HttpResponse.BodyHandlers.ofInputStream()));
+            return read(getName(), transport, response, inputs, KosuzuEncodesEverything::readMobileResponse);
+        }
+    }
+
+    /**
+     * The official DeepL API, which needs a key
+     */
+    public static class DeepLApi implements TranslationBackend {
+        private final FileConfiguration config;
+        private final KosuzuConnectsEverything transport;
+
+        DeepLApi(Kosuzu kosuzu, KosuzuConnectsEverything transport) {
+            this.config = kosuzu.config;
+            this.transport = transport;
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return "DeepL API";
+        }
+
+        @Override
+        public @NotNull Capabilities getCapabilities() {
+            return new Capabilities(KosuzuBatchesEverything.MAX_BATCH_SIZE, null, true);
+        }
+
+        @Override
+        public boolean isConfigured() {
+            var key = config.getString("deepl-api-key");
+            return key != null && !key.equals("changeme");
+        }
+
+        @Override
+        public @NotNull CompletableFuture<List<TranslatedText>> translate(@NotNull List<String> inputs, @NotNull String language) {
+            if (!isConfigured()) {
+                return CompletableFuture.failedFuture(new BackendException(401, -1, "Please set your DeepL API key in config.yml"));
+            }
+
+            var key = config.getString("deepl-api-key");
+            var url = Objects.requireNonNull(config.getString("deepl-api-url"));
+            URI uri = URI.create(url);
+
+            var request = HttpRequest
+                .newBuilder(uri)
+                .header("Authorization", "DeepL-Auth-Key " + key)
+                .header("Content-Type", "application/json")
+                .POST(KosuzuEncodesEverything.writeApiRequest(inputs, language).publisher());
+
+            var response = transport.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            return read(getName(), transport, response, inputs, KosuzuEncodesEverything::readApiResponse);
+        }
+    }
+
+    /**
+     * A stand-in that never leaves the machine, for load testing: "text" becomes "[EN-US] text", detected as "XX".
+     * Answers after `translation.mock.latency_ms`, and exactly `translation.mock.error_rate` percent of calls fail,
+     * spread evenly, so the same run always fails the same calls.
+     */
+    public static class Mock implements TranslationBackend {
+        /**
+         * Not a real language, so the translations are never mistaken for the original being in the target language
+         */
+        public static final String SOURCE_LANGUAGE = "XX";
+
+        private final long latencyMs;
+        private final double errorRate;
+        private final int maxBatchSize;
+        private final AtomicLong calls = new AtomicLong();
+
+        Mock(FileConfiguration config) {
+            latencyMs = Math.max(0, config.getLong("translation.mock.latency_ms", 150));
+            errorRate = Math.max(0, Math.min(100, config.getDouble("translation.mock.error_rate", 0))) / 100;
+            maxBatchSize = Math.max(1, config.getInt("translation.mock.max_batch_size", KosuzuBatchesEverything.MAX_BATCH_SIZE));
+        }
+
+        @Override
+        public @NotNull String getName() {
+            return "Mock";
+        }
+
+        @Override
+        public @NotNull Capabilities getCapabilities() {
+            return new Capabilities(maxBatchSize, null, false);
+        }
+
+        @Override
+        public @NotNull CompletableFuture<List<TranslatedText>> translate(@NotNull List<String> inputs, @NotNull String language) {
+            var call = calls.getAndIncrement();
+            // Fails whenever the running total of errors owed goes up by one
+            var fail = (long) ((call + 1) * errorRate) > (long) (call * errorRate);
+
+            var executor = CompletableFuture.delayedExecutor(latencyMs, TimeUnit.MILLISECONDS);
+
+            return CompletableFuture.supplyAsync(() -> {
+                if (fail) {
+                    throw new BackendException(503, -1, "Mock failure for call " + call);
+                }
+
+                return inputs
+                        .stream()
+                        .map(input -> new TranslatedText("[" + language + "] " + input, SOURCE_LANGUAGE))
+                        .toList();
+            }, executor);
+        }
+    }
+}
@@ -16,18 +16,26 @@
 package net.gensokyoreimagined.motoori;
 
 import io.papermc.paper.event.player.AsyncChatDecorateEvent;
+import io.papermc.paper.event.player.AsyncChatEvent;
+import net.gensokyoreimagined.motoori.KosuzuDatabaseModels.TranslationMode;
+import net.gensokyoreimagined.motoori.KosuzuTranslationModels.TranslatedText;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.event.HoverEvent;
 import net.kyori.adventure.text.format.NamedTextColor;
-import net.kyori.adventure.text.serializer.json.JSONComponentSerializer;
 import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
 import org.bukkit.event.EventHandler;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.HashMap;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 @SuppressWarnings("UnstableApiUsage")
@@ -37,11 +45,15 @@ public class KosuzuUnderstandsEverything implements Listener {
     private final KosuzuRemembersEverything database;
     private final KosuzuKnowsWhereYouLive geolocation;
     private final KosuzuParsesEverything parser;
+    private final KosuzuTranslatesEverything translator;
+    private final long autoTranslateTimeout;
 
     public KosuzuUnderstandsEverything(Kosuzu kosuzu) {
         logger = kosuzu.getLogger();
         plugin = kosuzu;
         database = kosuzu.database;
+        translator = kosuzu.translator;
+        autoTranslateTimeout = kosuzu.config.getLong("auto_translate.timeout_ms", 2000);
         geolocation = new KosuzuKnowsWhereYouLive(kosuzu);
         parser = new KosuzuParsesEverything(kosuzu);
     }
@@ -67,8 +79,8 @@ public class KosuzuUnderstandsEverything implements Listener {
         var message = event.originalMessage();
         message = parser.removeUnwantedSyntax(message);
 
-        var json = JSONComponentSerializer.json().serialize(event.result());
-        var uuid = database.addMessage(json, PlainTextComponentSerializer.plainText().serialize(message));
+        // Identified by fingerprint; only serialized to JSON if it hasn't been seen recently
+        var uuid = database.addMessage(event.result(), PlainTextComponentSerializer.plainText().serialize(message));
 
         var response = event.result().hoverEvent(
                         Component
@@ -84,6 +96,80 @@ public class KosuzuUnderstandsEverything implements Listener {
         event.result(response);
     }
 
+    /**
+     * Automatic translation: the message is translated once per distinct language among viewers with auto enabled,
+     * then each viewer is sent the version in their language, so cost scales with languages rather than players.
+     * Chat itself never waits for DeepL: the translation follows the original message once it's ready.
+     * ON only sends translations of messages that aren't already in the viewer's language; FORCE always sends DeepL's output.
+     */
+    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
+    private void onChatAutoTranslate(AsyncChatEvent event) {
+        // Never hold up the main thread waiting for DeepL
+        if (!event.isAsynchronous()) return;
+
+        var viewerLanguages = new HashMap<UUID, String>();
+        var viewerModes = new HashMap<UUID, TranslationMode>();
+
+        for (var viewer : event.viewers()) {
+            if (!(viewer instanceof Player player) || player.equals(event.getPlayer())) continue;
+            if (!player.hasPermission("kosuzu.translate.auto")) continue;
+
+            var uuid = player.getUniqueId();
+            var mode = database.getUserAutoTranslate(uuid);
+            if (mode == TranslationMode.OFF) continue;
+
+            viewerLanguages.put(uuid, database.getUserDefaultLanguage(uuid));
+            viewerModes.put(uuid, mode);
+        }
+
+        if (viewerLanguages.isEmpty()) return;
+
+        var text = PlainTextComponentSerializer.plainText().serialize(parser.removeUnwantedSyntax(event.message()));
+        if (text.isBlank()) return;
+
+        // Viewers with ON would see a message already in their language unchanged anyway, so don't ask DeepL for it
+        var sourceLanguage = database.getRecognizer().detect(text);
+        viewerLanguages.keySet().removeIf(uuid -> viewerModes.get(uuid) == TranslationMode.ON && KosuzuTranslatesEverything.isSameLanguage(sourceLanguage, viewerLanguages.get(uuid)));
+        if (viewerLanguages.isEmpty()) return;
+
+        // Fire every language at once so they're sent together instead of one after another
+        var requests = new HashMap<String, CompletableFuture<TranslatedText>>();
+        for (var language : viewerLanguages.values()) {
+            requests.computeIfAbsent(language, key -> translator.translate(text, key));
+        }
+
+        var renderer = event.renderer();
+        var source = event.getPlayer();
+        var displayName = source.displayName();
+        var message = event.message();
+        var sent = System.currentTimeMillis();
+
+        // Chat goes out untranslated straight away; each language's translation follows as soon as it's ready
+        requests.forEach((language, request) -> request.thenAccept(translation -> {
+            if (translation == null || translation.text() == null) return;
+
+            // Too late to make sense next to the message it translates
+            if (System.currentTimeMillis() - sent > autoTranslateTimeout) return;
+
+            // Decorated like the original: its colours and click to translate, with links made clickable again
+            var translated = parser.makeLinksClickable(Component.text(translation.text(), message.style()).hoverEvent(HoverEvent.showText(message)));
+
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                for (var entry : viewerLanguages.entrySet()) {
+                    if (!language.equals(entry.getValue())) continue;
+
+                    var uuid = entry.getKey();
+                    if (viewerModes.get(uuid) != TranslationMode.FORCE && KosuzuTranslatesEverything.isSameLanguage(translation.sourceLanguage(), language)) continue;
+
+                    var viewer = plugin.getServer().getPlayer(uuid);
+                    if (viewer != null) {
+                        viewer.sendMessage(renderer.render(source, displayName, translated, viewer));
+                    }
+                }
+            });
+        }));
+    }
+
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onPlayerJoin(@NotNull PlayerJoinEvent event) {
         var player = event.getPlayer();
@@ -91,67 +177,86 @@ public class KosuzuUnderstandsEverything implements Listener {
         var name = player.getName();
 
 
-        if (database.isNewUser(uuid, name)) {
-            geolocation.getCountryCode(player).thenAccept(countryCode -> {
-                var country = countryCode;
-
-                // Special cases for countries (yandere dev would be proud)
-
-                if (Objects.equals(country, "CN")) country = "ZH"; // Special case for China
-                else if (Objects.equals(country, "TW")) country = "ZH"; // Special case for Taiwan
-                else if (Objects.equals(country, "HK")) country = "ZH"; // Special case for Hong Kong
-                else if (Objects.equals(country, "JP")) country = "JA"; // Special case for Japan
-                else if (Objects.equals(country, "GB")) country = "EN-GB"; // Special case for England
-                else if (Objects.equals(country, "US")) country = "EN-US"; // Special case for United States
-                else if (Objects.equals(country, "CA")) country = "EN-US"; // Special case for Canada
-                else if (Objects.equals(country, "AU")) country = "EN-GB"; // Special case for Australia
-
-                else if (Objects.equals(country, "ES")) country = "ES"; // Special case for Spain
-                else if (Objects.equals(country, "MX")) country = "ES"; // Special case for Mexico
-                else if (Objects.equals(country, "AR")) country = "ES"; // Special case for Argentina
-                else if (Objects.equals(country, "CL")) country = "ES"; // Special case for Chile
-                else if (Objects.equals(country, "CO")) country = "ES"; // Special case for Colombia
-                else if (Objects.equals(country, "PE")) country = "ES"; // Special case for Peru
-                else if (Objects.equals(country, "VE")) country = "ES"; // Special case for Venezuela
-                else if (Objects.equals(country, "EC")) country = "ES"; // Special case for Ecuador
-                else if (Objects.equals(country, "GT")) country = "ES"; // Special case for Guatemala
-                else if (Objects.equals(country, "CU")) country = "ES"; // Special case for Cuba
-                else if (Objects.equals(country, "BO")) country = "ES"; // Special case for Bolivia
-                else if (Objects.equals(country, "DO")) country = "ES"; // Special case for Dominican Republic
-                else if (Objects.equals(country, "HN")) country = "ES"; // Special case for Honduras
-
-                else if (Objects.equals(country, "BR")) country = "PT-BR"; // Special case for Brazil
-                else if (Objects.equals(country, "PT")) country = "PT-PT"; // Special case for Portugal
-
-                if (country != null) {
-                    // Extra searching for languages
-                    var languages = database.getLanguages();
-                    String finalCountry = country;
-                    country = languages.stream().map(KosuzuDatabaseModels.Language::code).filter(code -> code.toUpperCase().contains(finalCountry.toUpperCase())).findFirst().orElse(null);
-                }
+        // JDBC stays off the main thread; the profile is cached long before the player's first chat message matters
+        database.runAsync(() -> {
+            var isNew = database.isNewUser(uuid, name);
 
-                if (country != null) {
-                    try {
-                        database.setUserDefaultLanguage(uuid, country);
-                    } catch (Exception e) {
-                        logger.warning("Failed to set default language for " + name + " (" + uuid + ") to " + country + ": " + e.getMessage());
-                    }
+            // Don't resurrect the profile of someone who already left
+            if (player.isOnline()) {
+                database.loadUser(uuid);
+            }
+
+            if (isNew) {
+                welcomeNewUser(player, uuid, name);
+            }
+        });
+    }
+
+    @EventHandler
+    public void onPlayerQuit(@NotNull PlayerQuitEvent event) {
+        database.evictUser(event.getPlayer().getUniqueId());
+    }
+
+    private void welcomeNewUser(@NotNull Player player, @NotNull UUID uuid, @NotNull String name) {
+        geolocation.getCountryCode(player).thenAccept(countryCode -> {
+            var country = countryCode;
+
+            // Special cases for countries (yandere dev would be proud)
+
+            if (Objects.equals(country, "CN")) country = "ZH"; // Special case for China
+            else if (Objects.equals(country, "TW")) country = "ZH"; // Special case for Taiwan
+            else if (Objects.equals(country, "HK")) country = "ZH"; // Special case for Hong Kong
+            else if (Objects.equals(country, "JP")) country = "JA"; // Special case for Japan
+            else if (Objects.equals(country, "GB")) country = "EN-GB"; // Special case for England
+            else if (Objects.equals(country, "US")) country = "EN-US"; // Special case for United States
+            else if (Objects.equals(country, "CA")) country = "EN-US"; // Special case for Canada
+            else if (Objects.equals(country, "AU")) country = "EN-GB"; // Special case for Australia
+
+            else if (Objects.equals(country, "ES")) country = "ES"; // Special case for Spain
+            else if (Objects.equals(country, "MX")) country = "ES"; // Special case for Mexico
+            else if (Objects.equals(country, "AR")) country = "ES"; // Special case for Argentina
+            else if (Objects.equals(country, "CL")) country = "ES"; // Special case for Chile
+            else if (Objects.equals(country, "CO")) country = "ES"; // Special case for Colombia
+            else if (Objects.equals(country, "PE")) country = "ES"; // Special case for Peru
+            else if (Objects.equals(country, "VE")) country = "ES"; // Special case for Venezuela
+            else if (Objects.equals(country, "EC")) country = "ES"; // Special case for Ecuador
+            else if (Objects.equals(country, "GT")) country = "ES"; // Special case for Guatemala
+            else if (Objects.equals(country, "CU")) country = "ES"; // Special case for Cuba
+            else if (Objects.equals(country, "BO")) country = "ES"; // Special case for Bolivia
+            else if (Objects.equals(country, "DO")) country = "ES"; // Special case for Dominican Republic
+            else if (Objects.equals(country, "HN")) country = "ES"; // Special case for Honduras
+
+            else if (Objects.equals(country, "BR")) country = "PT-BR"; // Special case for Brazil
+            else if (Objects.equals(country, "PT")) country = "PT-PT"; // Special case for Portugal
+
+            if (country != null) {
+                // Extra searching for languages
+                var languages = database.getLanguages();
+                String finalCountry = country;
+                country = languages.stream().map(KosuzuDatabaseModels.Language::code).filter(code -> code.toUpperCase().contains(finalCountry.toUpperCase())).findFirst().orElse(null);
+            }
+
+            if (country != null) {
+                try {
+                    database.setUserDefaultLanguage(uuid, country);
+                } catch (Exception e) {
+                    logger.warning("Failed to set default language for " + name + " (" + uuid + ") to " + country + ": " + e.getMessage());
                 }
+            }
 
-                final String lang = country;
-                plugin.getServer().getScheduler().runTask(plugin, () -> {
-                    if (player.isOnline()) {
-                        player.sendMessage(
-                                Kosuzu.HEADER
-                                        .append(Component.text(database.getTranslation("welcome.first", lang).replace("%username%", name), NamedTextColor.GRAY))
-                                        .append(Component.newline())
-                                        .append(Component.text(database.getTranslation("welcome.second", lang), NamedTextColor.GRAY))
-                                        .append(Component.newline())
-                                        .append(Component.text(database.getTranslation("welcome.third", lang), NamedTextColor.GRAY))
-                        );
-                    }
-                });
+            final String lang = country;
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (player.isOnline()) {
+                    player.sendMessage(
+                            Kosuzu.HEADER
+                                    .append(Component.text(database.getTranslation("welcome.first", lang).replace("%username%", name), NamedTextColor.GRAY))
+                                    .append(Component.newline())
+                                    .append(Component.text(database.getTranslation("welcome.second", lang), NamedTextColor.GRAY))
+                                    .append(Component.newline())
+                                    .append(Component.text(database.getTranslation("welcome.third", lang), NamedTextColor.GRAY))
+                    );
+                }
             });
-        }
+        });
     }
 }
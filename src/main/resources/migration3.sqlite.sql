@@ -0,0 +1,4 @@
+-- Lets the translation cache warm up with the most recent translations
+ALTER TABLE `message_translation` ADD COLUMN `created_at` BIGINT NOT NULL DEFAULT 0;
+
+CREATE INDEX `message_translation_created_at_idx` ON `message_translation` (`created_at`);
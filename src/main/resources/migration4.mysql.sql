@@ -0,0 +1,6 @@
+-- Minecraft messages are identified by a 128-bit fingerprint instead of their (up to 2 KB) JSON
+ALTER TABLE `user_message` ADD COLUMN `hash` BINARY(16) NULL AFTER `json_msg`;
+
+CREATE UNIQUE INDEX `user_message_hash_idx` ON `user_message` (`hash`);
+
+ALTER TABLE `user_message` DROP INDEX `json_msg`;
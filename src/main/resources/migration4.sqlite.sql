@@ -0,0 +1,6 @@
+-- Minecraft messages are identified by a 128-bit fingerprint instead of their (up to 2 KB) JSON
+ALTER TABLE `user_message` ADD COLUMN `hash` BLOB;
+
+CREATE UNIQUE INDEX IF NOT EXISTS `user_message_hash_idx` ON `user_message` (`hash`);
+
+DROP INDEX IF EXISTS `user_message_json_msg_idx`;
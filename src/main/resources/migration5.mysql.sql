@@ -0,0 +1,90 @@
+-- UUIDs are stored as 16 raw bytes instead of 36 characters, roughly halving the size of every key and index
+-- The old tables are renamed aside, recreated with BINARY(16) keys and copied over
+SET FOREIGN_KEY_CHECKS = 0;
+
+RENAME TABLE `user` TO `user_old`, `multilingual` TO `multilingual_old`, `message` TO `message_old`,
+    `message_translation` TO `message_translation_old`, `user_message` TO `user_message_old`,
+    `user_message_lookup` TO `user_message_lookup_old`;
+
+CREATE TABLE `user`
+(
+    `uuid`             BINARY(16)  NOT NULL, -- Minecraft UUID
+    `last_known_name`  VARCHAR(16) NOT NULL,
+    `default_language` VARCHAR(8)  NOT NULL DEFAULT 'EN-US',
+    `use_auto`         TINYINT(1)  NOT NULL DEFAULT 0,
+    PRIMARY KEY (`uuid`),
+    FOREIGN KEY (`default_language`) REFERENCES `language` (`code`) ON DELETE CASCADE
+);
+
+CREATE TABLE `multilingual`
+(
+    `uuid`     BINARY(16) NOT NULL, -- Surrogate key
+    `language` VARCHAR(8) NOT NULL, -- ISO 639-1 code
+    PRIMARY KEY (`uuid`, `language`),
+    FOREIGN KEY (`uuid`) REFERENCES `user` (`uuid`) ON DELETE CASCADE,
+    FOREIGN KEY (`language`) REFERENCES `language` (`code`) ON DELETE CASCADE
+);
+
+CREATE TABLE `message`
+(
+    `uuid`       BINARY(16)   NOT NULL,
+    `text`       VARCHAR(256) NOT NULL, -- We don't explicitly know the language of the message, so we store it here
+    `language`   VARCHAR(8), -- ISO 639-1 code of the message, NULL if the language is unknown
+    PRIMARY KEY (`uuid`),
+    UNIQUE (`text`)
+);
+
+CREATE TABLE `message_translation`
+(
+    `uuid`       BINARY(16)   NOT NULL, -- Surrogate key
+    `message_id` BINARY(16)   NOT NULL, -- To which message this translation belongs
+    `language`   VARCHAR(8)   NOT NULL, -- ISO 639-1 code of translation
+    `text`       VARCHAR(512) NOT NULL, -- The translated text
+    `created_at` BIGINT       NOT NULL DEFAULT 0,
+    PRIMARY KEY (`uuid`),
+    UNIQUE (`message_id`, `language`),
+    INDEX `message_translation_created_at_idx` (`created_at`),
+    FOREIGN KEY (`message_id`) REFERENCES `message` (`uuid`) ON DELETE CASCADE,
+    FOREIGN KEY (`language`) REFERENCES `language` (`code`) ON DELETE CASCADE
+);
+
+CREATE TABLE `user_message`
+(
+    `uuid`       BINARY(16)    NOT NULL, -- Surrogate key
+    `message_id` BINARY(16)    NOT NULL, -- To which message this translation belongs
+    `json_msg`   VARCHAR(2048) NOT NULL, -- The JSON message from Minecraft
+    `hash`       BINARY(16)    NULL, -- Fingerprint of the JSON message
+    PRIMARY KEY (`uuid`),
+    UNIQUE INDEX `user_message_hash_idx` (`hash`),
+    FOREIGN KEY (`message_id`) REFERENCES `message` (`uuid`) ON DELETE CASCADE
+);
+
+CREATE TABLE `user_message_lookup`
+(
+    `uuid`             BINARY(16) NOT NULL, -- Quickly generate a UUID when a user sends a message
+    `user_message_id`  BINARY(16) NOT NULL, -- The actual UUID of the message (once written into `user_message`)
+    PRIMARY KEY (`uuid`),
+    FOREIGN KEY (`user_message_id`) REFERENCES `user_message` (`uuid`) ON DELETE CASCADE
+);
+
+INSERT INTO `user` (`uuid`, `last_known_name`, `default_language`, `use_auto`)
+SELECT UNHEX(REPLACE(`uuid`, '-', '')), `last_known_name`, `default_language`, `use_auto` FROM `user_old`;
+
+INSERT INTO `multilingual` (`uuid`, `language`)
+SELECT UNHEX(REPLACE(`uuid`, '-', '')), `language` FROM `multilingual_old`;
+
+INSERT INTO `message` (`uuid`, `text`, `language`)
+SELECT UNHEX(REPLACE(`uuid`, '-', '')), `text`, `language` FROM `message_old`;
+
+INSERT INTO `message_translation` (`uuid`, `message_id`, `language`, `text`, `created_at`)
+SELECT UNHEX(REPLACE(`uuid`, '-', '')), UNHEX(REPLACE(`message_id`, '-', '')), `language`, `text`, `created_at` FROM `message_translation_old`;
+
+INSERT INTO `user_message` (`uuid`, `message_id`, `json_msg`, `hash`)
+SELECT UNHEX(REPLACE(`uuid`, '-', '')), UNHEX(REPLACE(`message_id`, '-', '')), `json_msg`, `hash` FROM `user_message_old`;
+
+INSERT INTO `user_message_lookup` (`uuid`, `user_message_id`)
+SELECT UNHEX(REPLACE(`uuid`, '-', '')), UNHEX(REPLACE(`user_message_id`, '-', '')) FROM `user_message_lookup_old`;
+
+DROP TABLE `user_message_lookup_old`, `user_message_old`, `message_translation_old`, `message_old`, `multilingual_old`, `user_old`;
+
+SET FOREIGN_KEY_CHECKS = 1;
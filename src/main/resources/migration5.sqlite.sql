@@ -0,0 +1,98 @@
+-- UUIDs are stored as 16 raw bytes instead of 36 characters, roughly halving the size of every key and index
+-- SQLite can't change a column's type, so each table is rebuilt under a new name, copied over and swapped in
+CREATE TABLE `user_new`
+(
+    `uuid`             BLOB        NOT NULL, -- Minecraft UUID
+    `last_known_name`  VARCHAR(16) NOT NULL,
+    `default_language` VARCHAR(8)  NOT NULL DEFAULT 'EN-US',
+    `use_auto`         TINYINT(1)  NOT NULL DEFAULT 0,
+    PRIMARY KEY (`uuid`),
+    FOREIGN KEY (`default_language`) REFERENCES `language` (`code`) ON DELETE CASCADE
+);
+
+CREATE TABLE `multilingual_new`
+(
+    `uuid`     BLOB       NOT NULL, -- Surrogate key
+    `language` VARCHAR(8) NOT NULL, -- ISO 639-1 code
+    PRIMARY KEY (`uuid`, `language`),
+    FOREIGN KEY (`uuid`) REFERENCES `user` (`uuid`) ON DELETE CASCADE,
+    FOREIGN KEY (`language`) REFERENCES `language` (`code`) ON DELETE CASCADE
+);
+
+CREATE TABLE `message_new`
+(
+    `uuid`       BLOB         NOT NULL,
+    `text`       VARCHAR(256) NOT NULL, -- We don't explicitly know the language of the message, so we store it here
+    `language`   VARCHAR(8), -- ISO 639-1 code of the message, NULL if the language is unknown
+    PRIMARY KEY (`uuid`),
+    UNIQUE (`text`)
+);
+
+CREATE TABLE `message_translation_new`
+(
+    `uuid`       BLOB         NOT NULL, -- Surrogate key
+    `message_id` BLOB         NOT NULL, -- To which message this translation belongs
+    `language`   VARCHAR(8)   NOT NULL, -- ISO 639-1 code of translation
+    `text`       VARCHAR(512) NOT NULL, -- The translated text
+    `created_at` BIGINT       NOT NULL DEFAULT 0,
+    PRIMARY KEY (`uuid`),
+    FOREIGN KEY (`message_id`) REFERENCES `message` (`uuid`) ON DELETE CASCADE,
+    FOREIGN KEY (`language`) REFERENCES `language` (`code`) ON DELETE CASCADE
+);
+
+CREATE TABLE `user_message_new`
+(
+    `uuid`       BLOB          NOT NULL, -- Surrogate key
+    `message_id` BLOB          NOT NULL, -- To which message this translation belongs
+    `json_msg`   VARCHAR(2048) NOT NULL, -- The JSON message from Minecraft
+    `hash`       BLOB, -- Fingerprint of the JSON message
+    PRIMARY KEY (`uuid`),
+    FOREIGN KEY (`message_id`) REFERENCES `message` (`uuid`) ON DELETE CASCADE
+);
+
+CREATE TABLE `user_message_lookup_new`
+(
+    `uuid`             BLOB NOT NULL, -- Quickly generate a UUID when a user sends a message
+    `user_message_id`  BLOB NOT NULL, -- The actual UUID of the message (once written into `user_message`)
+    PRIMARY KEY (`uuid`),
+    FOREIGN KEY (`user_message_id`) REFERENCES `user_message` (`uuid`) ON DELETE CASCADE
+);
+
+INSERT INTO `user_new` (`uuid`, `last_known_name`, `default_language`, `use_auto`)
+SELECT unhex(replace(`uuid`, '-', '')), `last_known_name`, `default_language`, `use_auto` FROM `user`;
+
+INSERT INTO `multilingual_new` (`uuid`, `language`)
+SELECT unhex(replace(`uuid`, '-', '')), `language` FROM `multilingual`;
+
+INSERT INTO `message_new` (`uuid`, `text`, `language`)
+SELECT unhex(replace(`uuid`, '-', '')), `text`, `language` FROM `message`;
+
+INSERT INTO `message_translation_new` (`uuid`, `message_id`, `language`, `text`, `created_at`)
+SELECT unhex(replace(`uuid`, '-', '')), unhex(replace(`message_id`, '-', '')), `language`, `text`, `created_at` FROM `message_translation`;
+
+INSERT INTO `user_message_new` (`uuid`, `message_id`, `json_msg`, `hash`)
+SELECT unhex(replace(`uuid`, '-', '')), unhex(replace(`message_id`, '-', '')), `json_msg`, `hash` FROM `user_message`;
+
+INSERT INTO `user_message_lookup_new` (`uuid`, `user_message_id`)
+SELECT unhex(replace(`uuid`, '-', '')), unhex(replace(`user_message_id`, '-', '')) FROM `user_message_lookup`;
+
+-- Dropping a table drops its indexes too, freeing their names for the new tables
+DROP TABLE `user_message_lookup`;
+DROP TABLE `user_message`;
+DROP TABLE `message_translation`;
+DROP TABLE `message`;
+DROP TABLE `multilingual`;
+DROP TABLE `user`;
+
+ALTER TABLE `user_new` RENAME TO `user`;
+ALTER TABLE `multilingual_new` RENAME TO `multilingual`;
+ALTER TABLE `message_new` RENAME TO `message`;
+ALTER TABLE `message_translation_new` RENAME TO `message_translation`;
+ALTER TABLE `user_message_new` RENAME TO `user_message`;
+ALTER TABLE `user_message_lookup_new` RENAME TO `user_message_lookup`;
+
+CREATE UNIQUE INDEX `message_translation_index` ON `message_translation` (`message_id`, `language`);
+
+CREATE INDEX `message_translation_created_at_idx` ON `message_translation` (`created_at`);
+
+CREATE UNIQUE INDEX `user_message_hash_idx` ON `user_message` (`hash`);
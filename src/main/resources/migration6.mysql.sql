@@ -0,0 +1,13 @@
+-- Lets old chat history be cleaned up. Rows from before this migration are dated to the upgrade, so they're kept
+-- for the full retention period rather than all being deleted on the first run
+ALTER TABLE `user_message_lookup` ADD COLUMN `created_at` BIGINT NOT NULL DEFAULT 0;
+
+ALTER TABLE `user_message` ADD COLUMN `created_at` BIGINT NOT NULL DEFAULT 0;
+
+UPDATE `user_message_lookup` SET `created_at` = UNIX_TIMESTAMP() * 1000;
+
+UPDATE `user_message` SET `created_at` = UNIX_TIMESTAMP() * 1000;
+
+CREATE INDEX `user_message_lookup_created_at_idx` ON `user_message_lookup` (`created_at`);
+
+CREATE INDEX `user_message_created_at_idx` ON `user_message` (`created_at`);
@@ -0,0 +1,82 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import net.kyori.adventure.text.Component;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The default match.include patterns, and the same three formats written with %username%,
+ * must pick out the message (and only for its sender) just as substituting the name into the pattern would
+ */
+class KosuzuParsesEverythingTest {
+    private static final Logger logger = Logger.getAnonymousLogger();
+
+    /**
+     * The default patterns, each with the sender's name where the line has it
+     */
+    private static final List<String> USERNAME_PATTERNS = List.of(
+        "^<%username%> (.*)", // Vanilla
+        "^[^\\[][^»]+%username% » (.*)", // Discord
+        "^(?::build:|:dev_server:).+?%username%: (.*)" // Chatty
+    );
+
+    private static final String VANILLA = "<Reimu> does anyone have spare iron?";
+    private static final String DISCORD = "Discord | Shrine Maiden Reimu » does anyone have spare iron?";
+    private static final String CHATTY = ":build: [Shrine] Reimu: does anyone have spare iron?";
+
+    @Test
+    void defaultPatternsFindTheMessage() {
+        var parser = new KosuzuParsesEverything(logger, KosuzuParsesEverything.DEFAULT_PATTERNS, List.of());
+
+        for (var line : List.of(VANILLA, DISCORD, CHATTY)) {
+            assertEquals("does anyone have spare iron?", parser.getTextMessage(Component.text(line), "Reimu"), line);
+        }
+
+        assertNull(parser.getTextMessage(Component.text("[Server] Restarting » in 5 minutes"), "Reimu"));
+    }
+
+    @Test
+    void usernamePatternsFindTheSendersMessage() {
+        var parser = new KosuzuParsesEverything(logger, USERNAME_PATTERNS, List.of());
+
+        for (var line : List.of(VANILLA, DISCORD, CHATTY)) {
+            assertEquals("does anyone have spare iron?", parser.getTextMessage(Component.text(line), "Reimu"), line);
+        }
+    }
+
+    @Test
+    void usernamePatternsIgnoreOtherPlayers() {
+        var parser = new KosuzuParsesEverything(logger, USERNAME_PATTERNS, List.of());
+
+        for (var line : List.of(VANILLA, DISCORD, CHATTY)) {
+            assertNull(parser.getTextMessage(Component.text(line), "Marisa"), line);
+        }
+    }
+
+    @Test
+    void staticPatternsComeFirst() {
+        var parser = new KosuzuParsesEverything(logger, List.of("^<%username%> (.*)", "^<\\S+> (?:\\[G\\] )?(.*)"), List.of());
+
+        assertEquals("hello", parser.getTextMessage(Component.text("<Reimu> [G] hello"), "Reimu"));
+    }
+}
@@ -0,0 +1,111 @@
+// Kosuzu Copyright (C) 2024 Gensokyo Reimagined
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+package net.gensokyoreimagined.motoori;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The point reads behind getTranslation (and so /kosuzu translate) must each be a single index search,
+ * never a scan, on a database built by the real SQLite migrations
+ */
+class KosuzuRemembersEverythingTest {
+    @TempDir
+    static Path folder;
+
+    private static Connection connection;
+
+    @BeforeAll
+    static void migrate() throws SQLException, IOException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + folder.resolve("kosuzu.db"));
+
+        try (var statement = connection.createStatement()) {
+            for (int i = 0; ; i++) {
+                try (var migration = KosuzuRemembersEverything.class.getClassLoader().getResourceAsStream("migration" + i + ".sqlite.sql")) {
+                    if (migration == null) break;
+
+                    // Split the same way the plugin does
+                    for (var query : new String(migration.readAllBytes(), StandardCharsets.UTF_8).split(";")) {
+                        if (!query.isBlank()) statement.execute(query);
+                    }
+                }
+            }
+        }
+    }
+
+    @AfterAll
+    static void close() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    void lookupUsesPrimaryKey() throws SQLException {
+        assertSearch(KosuzuRemembersEverything.SELECT_LOOKUP, "user_message_lookup", "sqlite_autoindex_user_message_lookup_1 (uuid=?)");
+    }
+
+    @Test
+    void userMessageUsesPrimaryKey() throws SQLException {
+        assertSearch(KosuzuRemembersEverything.SELECT_USER_MESSAGE, "user_message", "sqlite_autoindex_user_message_1 (uuid=?)");
+    }
+
+    @Test
+    void messageUsesPrimaryKey() throws SQLException {
+        assertSearch(KosuzuRemembersEverything.SELECT_MESSAGE, "message", "sqlite_autoindex_message_1 (uuid=?)");
+    }
+
+    @Test
+    void messageTranslationUsesUniqueIndex() throws SQLException {
+        assertSearch(KosuzuRemembersEverything.SELECT_MESSAGE_TRANSLATION, "message_translation", "message_translation_index (message_id=? AND language=?)");
+    }
+
+    /**
+     * Asserts the query's plan is one search of the table through the given index.
+     * SQLite keeps a primary key that isn't an INTEGER in an index of its own, named sqlite_autoindex_[table]_1
+     */
+    private static void assertSearch(String sql, String table, String index) throws SQLException {
+        var plan = new ArrayList<String>();
+
+        try (var statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            for (int i = 1; i <= statement.getParameterMetaData().getParameterCount(); i++) {
+                statement.setBytes(i, new byte[16]);
+            }
+
+            try (var result = statement.executeQuery()) {
+                while (result.next()) {
+                    plan.add(result.getString("detail"));
+                }
+            }
+        }
+
+        assertEquals(1, plan.size(), () -> "Expected a single step: " + plan);
+        var step = plan.get(0);
+        assertTrue(step.startsWith("SEARCH " + table + " "), () -> "Expected a search of " + table + ": " + step);
+        assertTrue(step.contains(index), () -> "Expected " + index + " to be used: " + step);
+    }
+}